@@ -1,218 +1,3916 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.*;
+
+enum ServiceClass {
+    ECONOMY("эконом"),
+    BUSINESS("бизнес");
+
+    private static final ServiceClass[] VALUES = values();
+
+    private final String displayName;
+
+    ServiceClass(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    // Код класса в пакетных массивах совпадает с ordinal()
+    public static ServiceClass ofCode(int code) {
+        return VALUES[code];
+    }
+
+    public static boolean isValidCode(int code) {
+        return code >= 0 && code < VALUES.length;
+    }
+
+    // null, если класс не распознан
+    public static ServiceClass parse(String name) {
+        for (ServiceClass serviceClass : VALUES) {
+            if (serviceClass.displayName.equalsIgnoreCase(name)) return serviceClass;
+        }
+        return null;
+    }
+
+    // Таблица множителей по ordinal(); по умолчанию 1.0 для всех классов
+    public static double[] newMultiplierTable() {
+        double[] table = new double[VALUES.length];
+        Arrays.fill(table, 1.0);
+        return table;
+    }
+}
 
 interface ICostCalculationStrategy {
-    double calculateCost(double distance, String serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior);
+    int FLAG_LUGGAGE = 1;
+    int FLAG_CHILD_OR_SENIOR = 2;
+
+    double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior);
+
+    default double calculateCost(double distance, String serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
+        ServiceClass parsed = ServiceClass.parse(serviceClass);
+        return calculateCost(distance, parsed != null ? parsed : ServiceClass.ECONOMY, passengers, hasLuggage, isChildOrSenior);
+    }
+
+    // Пакетный расчёт: параллельные массивы на входе, результаты в results[0..count)
+    default void calculateCosts(double[] distances, int[] serviceClasses, int[] passengers, int[] flags, double[] results, int count) {
+        calculateCosts(distances, serviceClasses, passengers, flags, results, 0, count);
+    }
+
+    // То же для диапазона [from, to): результаты пишутся в те же индексы
+    default void calculateCosts(double[] distances, int[] serviceClasses, int[] passengers, int[] flags, double[] results, int from, int to) {
+        for (int i = from; i < to; i++) {
+            results[i] = calculateCost(distances[i], ServiceClass.ofCode(serviceClasses[i]), passengers[i],
+                    (flags[i] & FLAG_LUGGAGE) != 0, (flags[i] & FLAG_CHILD_OR_SENIOR) != 0);
+        }
+    }
+}
+
+class AirplaneStrategy implements ICostCalculationStrategy {
+    private static final double BASE_RATE = 0.3;
+    private static final double LUGGAGE_FEE = 25;
+    private static final double DISCOUNT = 0.85;
+    private static final double AIRPORT_FEE = 50;
+    private static final double[] CLASS_MULTIPLIERS = ServiceClass.newMultiplierTable();
+
+    static {
+        CLASS_MULTIPLIERS[ServiceClass.BUSINESS.ordinal()] = 2.5;
+    }
+
+    public double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
+        double cost = distance * BASE_RATE * CLASS_MULTIPLIERS[serviceClass.ordinal()] * passengers;
+        if (hasLuggage) cost += LUGGAGE_FEE * passengers;
+        if (isChildOrSenior) cost *= DISCOUNT;
+        return cost + AIRPORT_FEE; // аэропортовый сбор
+    }
+
+    // Цикл без ветвлений и вызовов, чтобы JIT мог его векторизовать
+    public void calculateCosts(double[] distances, int[] serviceClasses, int[] passengers, int[] flags, double[] results, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int f = flags[i];
+            double cost = distances[i] * BASE_RATE * CLASS_MULTIPLIERS[serviceClasses[i]] * passengers[i];
+            cost += (f & FLAG_LUGGAGE) * LUGGAGE_FEE * passengers[i];
+            cost *= (f & FLAG_CHILD_OR_SENIOR) != 0 ? DISCOUNT : 1.0;
+            results[i] = cost + AIRPORT_FEE;
+        }
+    }
+}
+
+class TrainStrategy implements ICostCalculationStrategy {
+    private static final double BASE_RATE = 0.12;
+    private static final double LUGGAGE_FEE = 10;
+    private static final double DISCOUNT = 0.75;
+    private static final double[] CLASS_MULTIPLIERS = ServiceClass.newMultiplierTable();
+
+    static {
+        CLASS_MULTIPLIERS[ServiceClass.BUSINESS.ordinal()] = 1.8;
+    }
+
+    public double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
+        double cost = distance * BASE_RATE * CLASS_MULTIPLIERS[serviceClass.ordinal()] * passengers;
+        if (hasLuggage) cost += LUGGAGE_FEE * passengers;
+        if (isChildOrSenior) cost *= DISCOUNT;
+        return cost;
+    }
+
+    public void calculateCosts(double[] distances, int[] serviceClasses, int[] passengers, int[] flags, double[] results, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int f = flags[i];
+            double cost = distances[i] * BASE_RATE * CLASS_MULTIPLIERS[serviceClasses[i]] * passengers[i];
+            cost += (f & FLAG_LUGGAGE) * LUGGAGE_FEE * passengers[i];
+            cost *= (f & FLAG_CHILD_OR_SENIOR) != 0 ? DISCOUNT : 1.0;
+            results[i] = cost;
+        }
+    }
+}
+
+class BusStrategy implements ICostCalculationStrategy {
+    private static final double BASE_RATE = 0.08;
+    private static final double LUGGAGE_FEE = 5;
+    private static final double DISCOUNT = 0.8;
+    private static final double[] CLASS_MULTIPLIERS = ServiceClass.newMultiplierTable();
+
+    static {
+        CLASS_MULTIPLIERS[ServiceClass.BUSINESS.ordinal()] = 1.5;
+    }
+
+    public double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
+        double cost = distance * BASE_RATE * CLASS_MULTIPLIERS[serviceClass.ordinal()] * passengers;
+        if (hasLuggage) cost += LUGGAGE_FEE * passengers;
+        if (isChildOrSenior) cost *= DISCOUNT;
+        return cost;
+    }
+
+    public void calculateCosts(double[] distances, int[] serviceClasses, int[] passengers, int[] flags, double[] results, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int f = flags[i];
+            double cost = distances[i] * BASE_RATE * CLASS_MULTIPLIERS[serviceClasses[i]] * passengers[i];
+            cost += (f & FLAG_LUGGAGE) * LUGGAGE_FEE * passengers[i];
+            cost *= (f & FLAG_CHILD_OR_SENIOR) != 0 ? DISCOUNT : 1.0;
+            results[i] = cost;
+        }
+    }
+}
+
+// Кэш котировок поверх любой стратегии: LRU по сегментам с ограничением размера и TTL
+class CachingCostStrategy implements ICostCalculationStrategy {
+    private static final int MAX_SEGMENTS = 16;
+
+    private final ICostCalculationStrategy delegate;
+    private final long ttlNanos;
+    private final QuoteSegment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachingCostStrategy(ICostCalculationStrategy delegate, int maxSize, long ttl, TimeUnit unit) {
+        if (delegate == null || maxSize <= 0 || ttl < 0) throw new IllegalArgumentException("Некорректные параметры кэша.");
+        this.delegate = delegate;
+        this.ttlNanos = unit.toNanos(ttl);
+        int segmentCount = Integer.highestOneBit(Math.min(MAX_SEGMENTS, maxSize));
+        int segmentSize = (maxSize + segmentCount - 1) / segmentCount;
+        segments = new QuoteSegment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new QuoteSegment(segmentSize, evictions);
+        }
+    }
+
+    // ttl = 0 — записи не устаревают
+    public CachingCostStrategy(ICostCalculationStrategy delegate, int maxSize) {
+        this(delegate, maxSize, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
+        int flags = (hasLuggage ? FLAG_LUGGAGE : 0) | (isChildOrSenior ? FLAG_CHILD_OR_SENIOR : 0);
+        QuoteKey key = new QuoteKey(distance, serviceClass.ordinal(), passengers, flags);
+        int h = key.hashCode();
+        QuoteSegment segment = segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+        long now = ttlNanos > 0 ? System.nanoTime() : 0;
+
+        synchronized (segment) {
+            CachedQuote cached = segment.get(key);
+            if (cached != null) {
+                if (ttlNanos == 0 || now - cached.createdAt < ttlNanos) {
+                    hits.increment();
+                    return cached.cost;
+                }
+                segment.remove(key);
+                evictions.increment();
+            }
+        }
+
+        misses.increment();
+        double cost = delegate.calculateCost(distance, serviceClass, passengers, hasLuggage, isChildOrSenior);
+        synchronized (segment) {
+            segment.put(key, new CachedQuote(cost, now));
+        }
+        return cost;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (QuoteSegment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (QuoteSegment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private static final class QuoteKey {
+        private final long distanceBits;
+        private final int passengers;
+        private final int classAndFlags;
+
+        QuoteKey(double distance, int serviceClass, int passengers, int flags) {
+            this.distanceBits = Double.doubleToLongBits(distance);
+            this.passengers = passengers;
+            this.classAndFlags = (serviceClass << 2) | flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QuoteKey)) return false;
+            QuoteKey other = (QuoteKey) o;
+            return distanceBits == other.distanceBits && passengers == other.passengers && classAndFlags == other.classAndFlags;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = (int) (distanceBits ^ (distanceBits >>> 32));
+            h = h * 31 + passengers;
+            return h * 31 + classAndFlags;
+        }
+    }
+
+    private static final class CachedQuote {
+        final double cost;
+        final long createdAt;
+
+        CachedQuote(double cost, long createdAt) {
+            this.cost = cost;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static final class QuoteSegment extends LinkedHashMap<QuoteKey, CachedQuote> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+        private final transient LongAdder evictions;
+
+        QuoteSegment(int maxSize, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<QuoteKey, CachedQuote> eldest) {
+            if (size() <= maxSize) return false;
+            evictions.increment();
+            return true;
+        }
+    }
+}
+
+class TravelBookingContext {
+    private ICostCalculationStrategy strategy;
+
+    public void setStrategy(ICostCalculationStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public double calculateTotalCost(double distance, ServiceClass serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
+        if (strategy == null) throw new IllegalStateException("Стратегия не установлена.");
+        checkQuote(distance, serviceClass, passengers);
+        return strategy.calculateCost(distance, serviceClass, passengers, hasLuggage, isChildOrSenior);
+    }
+
+    public double calculateTotalCost(double distance, String serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
+        ServiceClass parsed = ServiceClass.parse(serviceClass);
+        return calculateTotalCost(distance, parsed != null ? parsed : ServiceClass.ECONOMY, passengers, hasLuggage, isChildOrSenior);
+    }
+
+    public void calculateTotalCosts(double[] distances, int[] serviceClasses, int[] passengers, int[] flags, double[] results, int count) {
+        if (strategy == null) throw new IllegalStateException("Стратегия не установлена.");
+        checkBatch(distances, serviceClasses, passengers, flags, results, count);
+        strategy.calculateCosts(distances, serviceClasses, passengers, flags, results, count);
+    }
+
+    static void checkQuote(double distance, ServiceClass serviceClass, int passengers) {
+        // NaN и бесконечность дали бы бессмысленную стоимость без ошибки
+        if (!(distance > 0) || Double.isInfinite(distance) || passengers <= 0 || serviceClass == null) {
+            throw new IllegalArgumentException("Некорректные входные данные.");
+        }
+    }
+
+    static void checkBatch(double[] distances, int[] serviceClasses, int[] passengers, int[] flags, double[] results, int count) {
+        checkBatchBounds(distances, serviceClasses, passengers, flags, results, count);
+        checkBatchRange(distances, serviceClasses, passengers, 0, count);
+    }
+
+    static void checkBatchBounds(double[] distances, int[] serviceClasses, int[] passengers, int[] flags, double[] results, int count) {
+        if (count < 0 || count > distances.length || count > serviceClasses.length || count > passengers.length
+                || count > flags.length || count > results.length) {
+            throw new IllegalArgumentException("Некорректный размер пакета.");
+        }
+    }
+
+    static void checkBatchRange(double[] distances, int[] serviceClasses, int[] passengers, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!(distances[i] > 0) || Double.isInfinite(distances[i]) || passengers[i] <= 0 || !ServiceClass.isValidCode(serviceClasses[i])) {
+                throw new IllegalArgumentException("Некорректные входные данные.");
+            }
+        }
+    }
+}
+
+enum TransportType {
+    AIRPLANE(1, "Самолёт"),
+    TRAIN(2, "Поезд"),
+    BUS(3, "Автобус");
+
+    private static final TransportType[] VALUES = values();
+
+    private final int code;
+    private final String displayName;
+
+    TransportType(int code, String displayName) {
+        this.code = code;
+        this.displayName = displayName;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    // null, если код не распознан
+    public static TransportType fromCode(int code) {
+        for (TransportType transport : VALUES) {
+            if (transport.code == code) return transport;
+        }
+        return null;
+    }
+
+    public static TransportType fromCode(String code) {
+        for (TransportType transport : VALUES) {
+            if (String.valueOf(transport.code).equals(code)) return transport;
+        }
+        return null;
+    }
+}
+
+// Неизменяемый фасад расчёта: стратегия выбирается по виду транспорта на каждый вызов,
+// поэтому один экземпляр можно разделять между потоками без блокировок
+final class TravelPricingService {
+    private final ICostCalculationStrategy[] strategies;
+
+    public TravelPricingService(Map<TransportType, ? extends ICostCalculationStrategy> registry) {
+        strategies = new ICostCalculationStrategy[TransportType.values().length];
+        for (Map.Entry<TransportType, ? extends ICostCalculationStrategy> entry : registry.entrySet()) {
+            strategies[entry.getKey().ordinal()] = entry.getValue();
+        }
+    }
+
+    public static TravelPricingService defaultService() {
+        Map<TransportType, ICostCalculationStrategy> registry = new EnumMap<>(TransportType.class);
+        registry.put(TransportType.AIRPLANE, new AirplaneStrategy());
+        registry.put(TransportType.TRAIN, new TrainStrategy());
+        registry.put(TransportType.BUS, new BusStrategy());
+        return new TravelPricingService(registry);
+    }
+
+    public static TravelPricingService fromTariffs(TariffTable tariffs) {
+        Map<TransportType, ICostCalculationStrategy> registry = new EnumMap<>(TransportType.class);
+        for (TransportType transport : TransportType.values()) {
+            registry.put(transport, new TableDrivenStrategy(tariffs, transport));
+        }
+        return new TravelPricingService(registry);
+    }
+
+    public boolean supports(TransportType transport) {
+        return transport != null && strategies[transport.ordinal()] != null;
+    }
+
+    public ICostCalculationStrategy getStrategy(TransportType transport) {
+        ICostCalculationStrategy strategy = transport != null ? strategies[transport.ordinal()] : null;
+        if (strategy == null) throw new IllegalStateException("Стратегия не установлена.");
+        return strategy;
+    }
+
+    public double calculateTotalCost(TransportType transport, double distance, ServiceClass serviceClass, int passengers,
+                                     boolean hasLuggage, boolean isChildOrSenior) {
+        ICostCalculationStrategy strategy = getStrategy(transport);
+        TravelBookingContext.checkQuote(distance, serviceClass, passengers);
+        return strategy.calculateCost(distance, serviceClass, passengers, hasLuggage, isChildOrSenior);
+    }
+
+    public void calculateTotalCosts(TransportType transport, double[] distances, int[] serviceClasses, int[] passengers,
+                                    int[] flags, double[] results, int count) {
+        ICostCalculationStrategy strategy = getStrategy(transport);
+        TravelBookingContext.checkBatch(distances, serviceClasses, passengers, flags, results, count);
+        strategy.calculateCosts(distances, serviceClasses, passengers, flags, results, count);
+    }
+}
+
+// Тарифы в формате properties, например:
+//   airplane.baseRate=0.3
+//   airplane.multiplier.эконом=1
+//   airplane.multiplier.бизнес=2.5
+//   airplane.luggageFee=25
+//   airplane.discount=0.85
+//   airplane.fixedFee=50
+// Для каждого вида транспорта обязательны все ключи, неизвестные ключи отклоняются.
+// Ставки компилируются в плоский массив rates[транспорт * числоКлассов + класс] = baseRate * множитель
+final class TariffTable {
+    private static final int CLASS_COUNT = ServiceClass.values().length;
+
+    private final double[] rates;
+    private final double[] luggageFees;
+    private final double[] discounts;
+    private final double[] fixedFees;
+
+    private TariffTable(Properties properties) {
+        TransportType[] transports = TransportType.values();
+        rates = new double[transports.length * CLASS_COUNT];
+        luggageFees = new double[transports.length];
+        discounts = new double[transports.length];
+        fixedFees = new double[transports.length];
+        Set<String> unknownKeys = new TreeSet<>(properties.stringPropertyNames());
+        for (TransportType transport : transports) {
+            String prefix = transport.name().toLowerCase(Locale.ROOT) + ".";
+            int t = transport.ordinal();
+            double baseRate = readValue(properties, prefix + "baseRate", unknownKeys);
+            for (ServiceClass serviceClass : ServiceClass.values()) {
+                double multiplier = readValue(properties, prefix + "multiplier." + serviceClass.getDisplayName(), unknownKeys);
+                rates[t * CLASS_COUNT + serviceClass.ordinal()] = baseRate * multiplier;
+            }
+            luggageFees[t] = readValue(properties, prefix + "luggageFee", unknownKeys);
+            discounts[t] = readValue(properties, prefix + "discount", unknownKeys);
+            fixedFees[t] = readValue(properties, prefix + "fixedFee", unknownKeys);
+        }
+        if (!unknownKeys.isEmpty()) throw new IllegalArgumentException("Неизвестные ключи тарифов: " + unknownKeys);
+    }
+
+    public static TariffTable load(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return load(reader);
+        }
+    }
+
+    public static TariffTable load(Reader reader) throws IOException {
+        Properties properties = new Properties();
+        properties.load(reader);
+        return new TariffTable(properties);
+    }
+
+    // Тарифы, совпадающие с AirplaneStrategy, TrainStrategy и BusStrategy
+    public static TariffTable defaults() {
+        Properties properties = new Properties();
+        properties.setProperty("airplane.baseRate", "0.3");
+        properties.setProperty("airplane.multiplier.эконом", "1");
+        properties.setProperty("airplane.multiplier.бизнес", "2.5");
+        properties.setProperty("airplane.luggageFee", "25");
+        properties.setProperty("airplane.discount", "0.85");
+        properties.setProperty("airplane.fixedFee", "50");
+        properties.setProperty("train.baseRate", "0.12");
+        properties.setProperty("train.multiplier.эконом", "1");
+        properties.setProperty("train.multiplier.бизнес", "1.8");
+        properties.setProperty("train.luggageFee", "10");
+        properties.setProperty("train.discount", "0.75");
+        properties.setProperty("train.fixedFee", "0");
+        properties.setProperty("bus.baseRate", "0.08");
+        properties.setProperty("bus.multiplier.эконом", "1");
+        properties.setProperty("bus.multiplier.бизнес", "1.5");
+        properties.setProperty("bus.luggageFee", "5");
+        properties.setProperty("bus.discount", "0.8");
+        properties.setProperty("bus.fixedFee", "0");
+        return new TariffTable(properties);
+    }
+
+    // Отмечает ключ как известный; отсутствие ключа — ошибка
+    private static double readValue(Properties properties, String key, Set<String> unknownKeys) {
+        String value = properties.getProperty(key);
+        if (value == null) throw new IllegalArgumentException("Не задан тариф: " + key);
+        unknownKeys.remove(key);
+        double parsed;
+        try {
+            parsed = Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Некорректное значение тарифа " + key + ": " + value);
+        }
+        if (!(parsed >= 0) || Double.isInfinite(parsed)) throw new IllegalArgumentException("Некорректное значение тарифа " + key + ": " + value);
+        return parsed;
+    }
+
+    public double getRate(TransportType transport, ServiceClass serviceClass) {
+        return rates[transport.ordinal() * CLASS_COUNT + serviceClass.ordinal()];
+    }
+
+    public double getLuggageFee(TransportType transport) {
+        return luggageFees[transport.ordinal()];
+    }
+
+    public double getDiscount(TransportType transport) {
+        return discounts[transport.ordinal()];
+    }
+
+    public double getFixedFee(TransportType transport) {
+        return fixedFees[transport.ordinal()];
+    }
+
+    // Копия ставок одного вида транспорта, индексируемая ServiceClass.ordinal()
+    double[] copyRates(TransportType transport) {
+        int from = transport.ordinal() * CLASS_COUNT;
+        return Arrays.copyOfRange(rates, from, from + CLASS_COUNT);
+    }
+}
+
+// Универсальная стратегия по таблице тарифов; параметры копируются в final-поля при создании
+final class TableDrivenStrategy implements ICostCalculationStrategy {
+    private final double[] rates;
+    private final double luggageFee;
+    private final double discount;
+    private final double fixedFee;
+
+    public TableDrivenStrategy(TariffTable tariffs, TransportType transport) {
+        this.rates = tariffs.copyRates(transport);
+        this.luggageFee = tariffs.getLuggageFee(transport);
+        this.discount = tariffs.getDiscount(transport);
+        this.fixedFee = tariffs.getFixedFee(transport);
+    }
+
+    public double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
+        double cost = distance * rates[serviceClass.ordinal()] * passengers;
+        if (hasLuggage) cost += luggageFee * passengers;
+        if (isChildOrSenior) cost *= discount;
+        return cost + fixedFee;
+    }
+
+    public void calculateCosts(double[] distances, int[] serviceClasses, int[] passengers, int[] flags, double[] results, int from, int to) {
+        double[] rates = this.rates;
+        double luggageFee = this.luggageFee;
+        double discount = this.discount;
+        double fixedFee = this.fixedFee;
+        for (int i = from; i < to; i++) {
+            int f = flags[i];
+            double cost = distances[i] * rates[serviceClasses[i]] * passengers[i];
+            cost += (f & FLAG_LUGGAGE) * luggageFee * passengers[i];
+            cost *= (f & FLAG_CHILD_OR_SENIOR) != 0 ? discount : 1.0;
+            results[i] = cost + fixedFee;
+        }
+    }
+}
+
+final class PriceQuote {
+    private final double cost;
+    private final long tariffVersion;
+
+    PriceQuote(double cost, long tariffVersion) {
+        this.cost = cost;
+        this.tariffVersion = tariffVersion;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    public long getTariffVersion() {
+        return tariffVersion;
+    }
+}
+
+// Расчёт по тарифам, которые можно заменить на лету: каждая версия — неизменяемый снимок,
+// подменяемый атомарно, так что вызов целиком видит одну версию тарифов
+final class ReloadableTariffService implements Closeable {
+    private static final long DEBOUNCE_MILLIS = 200;
+
+    private final AtomicReference<TariffSnapshot> snapshot;
+    private volatile Thread watcher;
+
+    public ReloadableTariffService(TariffTable initial) {
+        snapshot = new AtomicReference<>(new TariffSnapshot(initial, 1));
+    }
+
+    public long getVersion() {
+        return snapshot.get().version;
+    }
+
+    public TariffTable getTariffs() {
+        return snapshot.get().tariffs;
+    }
+
+    public long update(TariffTable tariffs) {
+        if (tariffs == null) throw new IllegalArgumentException("Тарифы не заданы.");
+        TariffSnapshot current;
+        TariffSnapshot next;
+        do {
+            current = snapshot.get();
+            next = new TariffSnapshot(tariffs, current.version + 1);
+        } while (!snapshot.compareAndSet(current, next));
+        return next.version;
+    }
+
+    public PriceQuote quote(TransportType transport, double distance, ServiceClass serviceClass, int passengers,
+                            boolean hasLuggage, boolean isChildOrSenior) {
+        TariffSnapshot current = snapshot.get();
+        double cost = current.pricing.calculateTotalCost(transport, distance, serviceClass, passengers, hasLuggage, isChildOrSenior);
+        return new PriceQuote(cost, current.version);
+    }
+
+    // Возвращает версию тарифов, по которой рассчитан весь пакет
+    public long calculateTotalCosts(TransportType transport, double[] distances, int[] serviceClasses, int[] passengers,
+                                    int[] flags, double[] results, int count) {
+        TariffSnapshot current = snapshot.get();
+        current.pricing.calculateTotalCosts(transport, distances, serviceClasses, passengers, flags, results, count);
+        return current.version;
+    }
+
+    // Следит за файлом тарифов и перечитывает его, когда изменения затихли на DEBOUNCE_MILLIS;
+    // при ошибке остаётся прежняя версия. Надёжнее всего подменять файл атомарным переименованием
+    public synchronized void watch(Path file) throws IOException {
+        if (watcher != null) throw new IllegalStateException("Наблюдение за файлом тарифов уже запущено.");
+        Path absolute = file.toAbsolutePath();
+        Path directory = absolute.getParent();
+        Path fileName = absolute.getFileName();
+        WatchService watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread thread = new Thread(() -> {
+            try (WatchService ws = watchService) {
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (!takeChange(ws.take(), fileName)) continue;
+                    // Файл ещё может дописываться: ждём паузы в событиях, затем проверяем его целиком
+                    WatchKey next;
+                    while ((next = ws.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        takeChange(next, fileName);
+                    }
+                    reload(absolute);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.out.println("Ошибка наблюдения за файлом тарифов: " + e.getMessage());
+            }
+        }, "tariff-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        watcher = thread;
+    }
+
+    private static boolean takeChange(WatchKey key, Path fileName) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (fileName.equals(event.context())) changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload(Path file) {
+        try {
+            long version = update(TariffTable.load(file));
+            System.out.println("Тарифы обновлены, версия " + version);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Не удалось загрузить тарифы: " + e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    private static final class TariffSnapshot {
+        final TariffTable tariffs;
+        final long version;
+        final TravelPricingService pricing;
+
+        TariffSnapshot(TariffTable tariffs, long version) {
+            this.tariffs = tariffs;
+            this.version = version;
+            this.pricing = TravelPricingService.fromTariffs(tariffs);
+        }
+    }
 }
 
-class AirplaneStrategy implements ICostCalculationStrategy {
-    public double calculateCost(double distance, String serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
-        double baseRate = 0.3;
-        double classMultiplier = serviceClass.equalsIgnoreCase("бизнес") ? 2.5 : 1.0;
-        double cost = distance * baseRate * classMultiplier * passengers;
-        if (hasLuggage) cost += 25 * passengers;
-        if (isChildOrSenior) cost *= 0.85;
-        return cost + 50; // аэропортовый сбор
+// Параллельный пакетный расчёт: диапазон делится между потоками ForkJoinPool,
+// каждый фрагмент пишет результаты в свои индексы, поэтому порядок сохраняется
+final class ParallelBatchPricer implements AutoCloseable {
+    // Столько double помещается в одну строку кэша (64 байта)
+    private static final int DOUBLES_PER_CACHE_LINE = 8;
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public ParallelBatchPricer(int parallelism, int chunkSize) {
+        if (parallelism <= 0 || chunkSize <= 0) throw new IllegalArgumentException("Некорректные параметры пула.");
+        this.pool = new ForkJoinPool(parallelism);
+        // Границы фрагментов кратны строке кэша, чтобы соседние потоки не делили строки массива результатов
+        this.chunkSize = (chunkSize + DOUBLES_PER_CACHE_LINE - 1) / DOUBLES_PER_CACHE_LINE * DOUBLES_PER_CACHE_LINE;
+    }
+
+    public ParallelBatchPricer() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void calculateTotalCosts(ICostCalculationStrategy strategy, double[] distances, int[] serviceClasses, int[] passengers,
+                                    int[] flags, double[] results, int count) {
+        if (strategy == null) throw new IllegalStateException("Стратегия не установлена.");
+        if (count <= chunkSize) {
+            TravelBookingContext.checkBatch(distances, serviceClasses, passengers, flags, results, count);
+            strategy.calculateCosts(distances, serviceClasses, passengers, flags, results, 0, count);
+            return;
+        }
+        TravelBookingContext.checkBatchBounds(distances, serviceClasses, passengers, flags, results, count);
+        // Два параллельных прохода: весь пакет проверяется до записи первого результата, как в checkBatch
+        pool.invoke(new PricingTask(null, distances, serviceClasses, passengers, flags, results, 0, count, chunkSize));
+        pool.invoke(new PricingTask(strategy, distances, serviceClasses, passengers, flags, results, 0, count, chunkSize));
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+
+    // Без стратегии задача только проверяет свой диапазон
+    private static final class PricingTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient ICostCalculationStrategy strategy;
+        private final double[] distances;
+        private final int[] serviceClasses;
+        private final int[] passengers;
+        private final int[] flags;
+        private final double[] results;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        PricingTask(ICostCalculationStrategy strategy, double[] distances, int[] serviceClasses, int[] passengers,
+                    int[] flags, double[] results, int from, int to, int chunkSize) {
+            this.strategy = strategy;
+            this.distances = distances;
+            this.serviceClasses = serviceClasses;
+            this.passengers = passengers;
+            this.flags = flags;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                if (strategy == null) TravelBookingContext.checkBatchRange(distances, serviceClasses, passengers, from, to);
+                else strategy.calculateCosts(distances, serviceClasses, passengers, flags, results, from, to);
+                return;
+            }
+            int chunks = (to - from + chunkSize - 1) / chunkSize;
+            int middle = from + chunks / 2 * chunkSize;
+            invokeAll(new PricingTask(strategy, distances, serviceClasses, passengers, flags, results, from, middle, chunkSize),
+                    new PricingTask(strategy, distances, serviceClasses, passengers, flags, results, middle, to, chunkSize));
+        }
+    }
+}
+
+// Разбор полей котировки прямо из байтов UTF-8, без создания строк
+final class QuoteFieldParser {
+    // Степени десяти до 10^22 представимы в double точно
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final String[] CLASS_NAMES;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        ServiceClass[] classes = ServiceClass.values();
+        CLASS_NAMES = new String[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            CLASS_NAMES[i] = classes[i].getDisplayName().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private QuoteFieldParser() {
+    }
+
+    static int trimStart(ByteBuffer buffer, int from, int to) {
+        while (from < to && isSpace(buffer.get(from))) from++;
+        return from;
+    }
+
+    static int trimEnd(ByteBuffer buffer, int from, int to) {
+        while (to > from && isSpace(buffer.get(to - 1))) to--;
+        return to;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    static int indexOf(ByteBuffer buffer, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    static int parseInt(ByteBuffer buffer, int from, int to) {
+        from = trimStart(buffer, from, to);
+        to = trimEnd(buffer, from, to);
+        boolean negative = from < to && buffer.get(from) == '-';
+        if (negative || (from < to && buffer.get(from) == '+')) from++;
+        if (from == to) throw new NumberFormatException("Пустое число.");
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Некорректное число.");
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE + 1L) throw new NumberFormatException("Слишком большое число.");
+        }
+        if (negative) value = -value;
+        if (value > Integer.MAX_VALUE) throw new NumberFormatException("Слишком большое число.");
+        return (int) value;
+    }
+
+    // Десятичная запись вида [-]123.45; длинные и экспоненциальные записи уходят в Double.parseDouble
+    static double parseDouble(ByteBuffer buffer, int from, int to) {
+        from = trimStart(buffer, from, to);
+        to = trimEnd(buffer, from, to);
+        int start = from;
+        boolean negative = from < to && buffer.get(from) == '-';
+        if (negative || (from < to && buffer.get(from) == '+')) from++;
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || digits >= 15) return parseDoubleSlow(buffer, start, to);
+            mantissa = mantissa * 10 + digit;
+            digits++;
+            if (fraction) fractionDigits++;
+        }
+        if (digits == 0) throw new NumberFormatException("Пустое число.");
+        double value = fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private static double parseDoubleSlow(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        double value = Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+        if (!Double.isFinite(value)) throw new NumberFormatException("Нечисловое значение.");
+        return value;
+    }
+
+    // null, если класс не распознан; сравнение без учёта регистра, как в ServiceClass.parse
+    static ServiceClass parseServiceClass(ByteBuffer buffer, int from, int to) {
+        from = trimStart(buffer, from, to);
+        to = trimEnd(buffer, from, to);
+        for (int c = 0; c < CLASS_NAMES.length; c++) {
+            if (matchesIgnoreCase(buffer, from, to, CLASS_NAMES[c])) return ServiceClass.ofCode(c);
+        }
+        return null;
+    }
+
+    // Ответ «да»: поле начинается с буквы «д» в любом регистре
+    static boolean parseYes(ByteBuffer buffer, int from, int to) {
+        from = trimStart(buffer, from, to);
+        return from < to && Character.toLowerCase(decodeChar(buffer, from, to)) == 'д';
+    }
+
+    private static boolean matchesIgnoreCase(ByteBuffer buffer, int from, int to, String lowerName) {
+        int position = from;
+        for (int k = 0; k < lowerName.length(); k++) {
+            if (position >= to) return false;
+            int c = decodeChar(buffer, position, to);
+            if (c < 0 || Character.toLowerCase(c) != lowerName.charAt(k)) return false;
+            position += utf8Length(buffer.get(position));
+        }
+        return position == to;
+    }
+
+    private static int utf8Length(byte lead) {
+        if ((lead & 0x80) == 0) return 1;
+        if ((lead & 0xE0) == 0xC0) return 2;
+        if ((lead & 0xF0) == 0xE0) return 3;
+        return 4;
+    }
+
+    // Символ BMP из последовательности UTF-8 или -1 для неподдерживаемых байтов
+    private static int decodeChar(ByteBuffer buffer, int position, int to) {
+        byte lead = buffer.get(position);
+        int length = utf8Length(lead);
+        if (length > 3 || position + length > to) return -1;
+        if (length == 1) return lead;
+        if (length == 2) return ((lead & 0x1F) << 6) | (buffer.get(position + 1) & 0x3F);
+        return ((lead & 0x0F) << 12) | ((buffer.get(position + 1) & 0x3F) << 6) | (buffer.get(position + 2) & 0x3F);
+    }
+}
+
+// Построчное чтение из потока в переиспользуемый буфер; поля разбираются прямо из байтов (UTF-8)
+final class FastLineReader {
+    private final InputStream in;
+    private byte[] buffer;
+    private ByteBuffer view;
+    private int position;
+    private int limit;
+    private int lineStart;
+    private int lineEnd;
+
+    public FastLineReader(InputStream in) {
+        this(in, 8192);
+    }
+
+    public FastLineReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+        this.view = ByteBuffer.wrap(buffer);
+    }
+
+    // Переходит к следующей строке; последняя строка может быть без перевода строки
+    public void nextLine() throws IOException {
+        int scanFrom = position;
+        while (true) {
+            int newline = QuoteFieldParser.indexOf(view, (byte) '\n', scanFrom, limit);
+            if (newline >= 0) {
+                lineStart = position;
+                lineEnd = newline;
+                position = newline + 1;
+                return;
+            }
+            scanFrom = limit - position;
+            if (!fill()) {
+                if (position == limit) throw new EOFException("Нет входных данных.");
+                lineStart = position;
+                lineEnd = limit;
+                position = limit;
+                return;
+            }
+        }
+    }
+
+    // Сдвигает непрочитанные байты в начало буфера и дочитывает поток
+    private boolean fill() throws IOException {
+        int pending = limit - position;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, pending);
+        } else if (pending == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            view = ByteBuffer.wrap(buffer);
+        }
+        position = 0;
+        limit = pending;
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read <= 0) return false;
+        limit += read;
+        return true;
+    }
+
+    public int parseInt() {
+        return QuoteFieldParser.parseInt(view, lineStart, lineEnd);
+    }
+
+    public double parseDouble() {
+        return QuoteFieldParser.parseDouble(view, lineStart, lineEnd);
+    }
+
+    public ServiceClass parseServiceClass() {
+        return QuoteFieldParser.parseServiceClass(view, lineStart, lineEnd);
+    }
+
+    public boolean parseYes() {
+        return QuoteFieldParser.parseYes(view, lineStart, lineEnd);
+    }
+}
+
+// Пакетный режим: CSV-файл котировок читается через отображение в память и
+// рассчитывается построчно, результаты пишутся в отображённый выходной файл.
+// Формат строки: транспорт,расстояние,класс,пассажиры,багаж,дети_или_пенсионеры
+// например «1,1000,бизнес,2,да,нет»; первая строка пропускается, если это заголовок
+final class CsvQuotePipeline {
+    private static final long INPUT_WINDOW = 64L << 20;
+    private static final long OUTPUT_WINDOW = 16L << 20;
+    private static final int FIELD_COUNT = 6;
+
+    private final TravelPricingService pricing;
+    private final int[] fieldStarts = new int[FIELD_COUNT];
+    private final int[] fieldEnds = new int[FIELD_COUNT];
+
+    private FileChannel outputChannel;
+    private MappedByteBuffer outputWindow;
+    private long outputWindowStart;
+    private long lineNumber;
+    // Заголовок допустим только до первой строки с данными, комментарии и пустые строки не считаются
+    private boolean headerAllowed;
+
+    public CsvQuotePipeline(TravelPricingService pricing) {
+        this.pricing = pricing;
+    }
+
+    // Возвращает число рассчитанных строк
+    public long run(Path input, Path output) throws IOException {
+        long quotes = 0;
+        lineNumber = 0;
+        headerAllowed = true;
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            outputChannel = out;
+            outputWindowStart = 0;
+            outputWindow = out.map(FileChannel.MapMode.READ_WRITE, 0, OUTPUT_WINDOW);
+            // Окно вывода отображается с запасом: файл обрезается до записанного и при ошибке в данных
+            try {
+                long size = in.size();
+                long base = 0;
+                while (base < size) {
+                    int limit = (int) Math.min(INPUT_WINDOW, size - base);
+                    boolean lastWindow = base + limit == size;
+                    MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, base, limit);
+                    int lineStart = 0;
+                    while (lineStart < limit) {
+                        int lineEnd = QuoteFieldParser.indexOf(window, (byte) '\n', lineStart, limit);
+                        if (lineEnd < 0) {
+                            if (!lastWindow) break;
+                            lineEnd = limit;
+                        }
+                        lineNumber++;
+                        if (processLine(window, lineStart, lineEnd)) quotes++;
+                        lineStart = lineEnd + 1;
+                    }
+                    if (lineStart == 0) throw new IOException("Строка " + (lineNumber + 1) + " длиннее окна чтения.");
+                    base += Math.min(lineStart, limit);
+                }
+            } finally {
+                long written = outputWindowStart + outputWindow.position();
+                outputWindow.force();
+                outputWindow = null;
+                out.truncate(written);
+            }
+        } finally {
+            outputChannel = null;
+        }
+        return quotes;
+    }
+
+    private boolean processLine(ByteBuffer line, int from, int to) throws IOException {
+        from = QuoteFieldParser.trimStart(line, from, to);
+        to = QuoteFieldParser.trimEnd(line, from, to);
+        if (from == to || line.get(from) == '#') return false;
+        byte first = line.get(from);
+        boolean header = headerAllowed && (first < '0' || first > '9');
+        headerAllowed = false;
+        if (header) return false;
+
+        int fields = 0;
+        int fieldStart = from;
+        for (int i = from; i <= to && fields < FIELD_COUNT; i++) {
+            if (i == to || line.get(i) == ',') {
+                fieldStarts[fields] = fieldStart;
+                fieldEnds[fields] = i;
+                fields++;
+                fieldStart = i + 1;
+            }
+        }
+        if (fields != FIELD_COUNT || fieldEnds[FIELD_COUNT - 1] != to) throw invalidLine();
+
+        double cost;
+        try {
+            TransportType transport = TransportType.fromCode(QuoteFieldParser.parseInt(line, fieldStarts[0], fieldEnds[0]));
+            double distance = QuoteFieldParser.parseDouble(line, fieldStarts[1], fieldEnds[1]);
+            ServiceClass serviceClass = QuoteFieldParser.parseServiceClass(line, fieldStarts[2], fieldEnds[2]);
+            int passengers = QuoteFieldParser.parseInt(line, fieldStarts[3], fieldEnds[3]);
+            boolean hasLuggage = QuoteFieldParser.parseYes(line, fieldStarts[4], fieldEnds[4]);
+            boolean isChildOrSenior = QuoteFieldParser.parseYes(line, fieldStarts[5], fieldEnds[5]);
+            if (transport == null || serviceClass == null) throw invalidLine();
+            cost = pricing.calculateTotalCost(transport, distance, serviceClass, passengers, hasLuggage, isChildOrSenior);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw invalidLine();
+        }
+        writeCost(cost);
+        return true;
+    }
+
+    private IllegalArgumentException invalidLine() {
+        return new IllegalArgumentException("Некорректные данные в строке " + lineNumber + ".");
+    }
+
+    // Стоимость с двумя знаками после точки и переводом строки
+    private void writeCost(double cost) throws IOException {
+        ensureOutput(24);
+        long cents = Math.round(cost * 100);
+        if (cents < 0) {
+            outputWindow.put((byte) '-');
+            cents = -cents;
+        }
+        writeDigits(cents / 100);
+        outputWindow.put((byte) '.');
+        outputWindow.put((byte) ('0' + cents / 10 % 10));
+        outputWindow.put((byte) ('0' + cents % 10));
+        outputWindow.put((byte) '\n');
+    }
+
+    private void writeDigits(long value) {
+        long divisor = 1;
+        while (divisor <= value / 10) divisor *= 10;
+        for (; divisor > 0; divisor /= 10) {
+            outputWindow.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    private void ensureOutput(int bytes) throws IOException {
+        if (outputWindow.remaining() >= bytes) return;
+        outputWindowStart += outputWindow.position();
+        outputWindow = outputChannel.map(FileChannel.MapMode.READ_WRITE, outputWindowStart, OUTPUT_WINDOW);
+    }
+}
+
+// Замеры расчёта стоимости: пропускная способность, средняя задержка и выделение памяти на операцию.
+// Сборка (публичный класс Main требует имени файла Main.java):
+//   mkdir -p build && cp practice6.java build/Main.java && javac -encoding UTF-8 -d out build/Main.java
+// Запуск: java -Dfile.encoding=UTF-8 -cp out PricingBenchmark [подстрока имени сценария]
+// Сценарии делят места вызова, поэтому для чистого мономорфного замера запускайте их по одному через фильтр
+final class PricingBenchmark {
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MEASURE_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final int DATA_SIZE = 1 << 20;
+    private static final int DATA_MASK = DATA_SIZE - 1;
+    private static final int[] BATCH_SIZES = {1, 100, 10_000, 1_000_000};
+
+    private static volatile double sink;
+
+    private final double[] distances = new double[DATA_SIZE];
+    private final int[] serviceClasses = new int[DATA_SIZE];
+    private final int[] passengers = new int[DATA_SIZE];
+    private final int[] flags = new int[DATA_SIZE];
+    private final double[] results = new double[DATA_SIZE];
+    private final String filter;
+    private int cursor;
+
+    private PricingBenchmark(String filter) {
+        this.filter = filter;
+        Random random = new Random(42);
+        for (int i = 0; i < DATA_SIZE; i++) {
+            distances[i] = 1 + random.nextInt(10_000) + random.nextDouble();
+            serviceClasses[i] = random.nextInt(ServiceClass.values().length);
+            passengers[i] = 1 + random.nextInt(8);
+            flags[i] = random.nextInt(4);
+        }
+    }
+
+    public static void main(String[] args) {
+        new PricingBenchmark(args.length > 0 ? args[0] : "").runAll();
+    }
+
+    private void runAll() {
+        ICostCalculationStrategy[] strategies = {new AirplaneStrategy(), new TrainStrategy(), new BusStrategy()};
+        System.out.printf("%-40s %15s %12s %10s%n", "Сценарий", "опер/с", "нс/опер", "байт/опер");
+
+        for (ICostCalculationStrategy strategy : strategies) {
+            String name = strategy.getClass().getSimpleName();
+            measure(name + ".calculateCost", 1, () -> singleQuote(strategy));
+        }
+
+        TravelBookingContext context = new TravelBookingContext();
+        context.setStrategy(strategies[0]);
+        measure("TravelBookingContext.calculateTotalCost", 1, () -> {
+            int i = next();
+            return context.calculateTotalCost(distances[i], ServiceClass.ofCode(serviceClasses[i]), passengers[i],
+                    (flags[i] & ICostCalculationStrategy.FLAG_LUGGAGE) != 0,
+                    (flags[i] & ICostCalculationStrategy.FLAG_CHILD_OR_SENIOR) != 0);
+        });
+
+        measure("мегаморфный вызов (3 стратегии)", 1, () -> singleQuote(strategies[Math.floorMod(cursor, strategies.length)]));
+
+        for (ICostCalculationStrategy strategy : strategies) {
+            String name = strategy.getClass().getSimpleName();
+            for (int batchSize : BATCH_SIZES) {
+                measure(name + ".calculateCosts[" + batchSize + "]", batchSize, () -> {
+                    strategy.calculateCosts(distances, serviceClasses, passengers, flags, results, batchSize);
+                    return results[batchSize - 1];
+                });
+            }
+        }
+
+        // Фрагменты считаются в потоках пула, а выделение памяти видно только по вызывающему потоку
+        try (ParallelBatchPricer pricer = new ParallelBatchPricer()) {
+            int batchSize = BATCH_SIZES[BATCH_SIZES.length - 1];
+            measure("ParallelBatchPricer[" + batchSize + "]", batchSize, false, () -> {
+                pricer.calculateTotalCosts(strategies[0], distances, serviceClasses, passengers, flags, results, batchSize);
+                return results[batchSize - 1];
+            });
+        }
+    }
+
+    private double singleQuote(ICostCalculationStrategy strategy) {
+        int i = next();
+        return strategy.calculateCost(distances[i], ServiceClass.ofCode(serviceClasses[i]), passengers[i],
+                (flags[i] & ICostCalculationStrategy.FLAG_LUGGAGE) != 0,
+                (flags[i] & ICostCalculationStrategy.FLAG_CHILD_OR_SENIOR) != 0);
+    }
+
+    private int next() {
+        return cursor++ & DATA_MASK;
+    }
+
+    private void measure(String name, int opsPerCall, DoubleSupplier body) {
+        measure(name, opsPerCall, true, body);
+    }
+
+    // countAllocation = false, если работа идёт в других потоках: байт/опер печатается как «не изм.»
+    private void measure(String name, int opsPerCall, boolean countAllocation, DoubleSupplier body) {
+        if (!name.contains(filter)) return;
+        loop(body, WARMUP_NANOS);
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long calls = loop(body, MEASURE_NANOS);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        double ops = (double) calls * opsPerCall;
+        String allocation = !countAllocation ? "не изм." : allocatedBefore < 0 ? "н/д" : String.format("%.2f", allocated / ops);
+        System.out.printf("%-40s %15.0f %12.3f %10s%n", name, ops * 1e9 / elapsed, elapsed / ops, allocation);
+    }
+
+    private static long loop(DoubleSupplier body, long durationNanos) {
+        long deadline = System.nanoTime() + durationNanos;
+        long calls = 0;
+        double acc = 0;
+        do {
+            for (int i = 0; i < 64; i++) {
+                acc += body.getAsDouble();
+            }
+            calls += 64;
+        } while (System.nanoTime() < deadline);
+        sink = acc;
+        return calls;
+    }
+
+    // -1, если JVM не считает выделение памяти по потокам
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
+
+// Пакет обновлений цен: параллельные массивы идентификаторов, символов и цен.
+// Элементы можно задавать по идентификатору из SymbolTable или по символу
+final class PriceBatch {
+    private int[] symbolIds;
+    private String[] symbols;
+    private double[] prices;
+    private int size;
+
+    public PriceBatch(int capacity) {
+        symbolIds = new int[Math.max(capacity, 1)];
+        symbols = new String[symbolIds.length];
+        prices = new double[symbolIds.length];
+    }
+
+    public void add(int symbolId, double price) {
+        add(symbolId, null, price);
+    }
+
+    public void add(String stockSymbol, double price) {
+        add(-1, stockSymbol, price);
+    }
+
+    void add(int symbolId, String stockSymbol, double price) {
+        if (size == symbolIds.length) {
+            int capacity = size * 2;
+            symbolIds = Arrays.copyOf(symbolIds, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+        }
+        symbolIds[size] = symbolId;
+        symbols[size] = stockSymbol;
+        prices[size] = price;
+        size++;
+    }
+
+    // Биржа дописывает недостающие идентификатор и символ элемента
+    void resolve(int index, int symbolId, String stockSymbol) {
+        symbolIds[index] = symbolId;
+        symbols[index] = stockSymbol;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int symbolId(int index) {
+        return symbolIds[index];
+    }
+
+    public String symbol(int index) {
+        return symbols[index];
+    }
+
+    public double price(int index) {
+        return prices[index];
+    }
+
+    public void clear() {
+        Arrays.fill(symbols, 0, size, null);
+        size = 0;
+    }
+}
+
+interface IObserver {
+    void update(String stockSymbol, double newPrice);
+
+    // Вариант с идентификатором акции из SymbolTable биржи; по умолчанию сводится к update по имени
+    default void update(int symbolId, String stockSymbol, double newPrice) {
+        update(stockSymbol, newPrice);
+    }
+
+    // Все обновления одного пакета, касающиеся этого наблюдателя, одним вызовом
+    default void updateAll(PriceBatch updates) {
+        for (int i = 0; i < updates.size(); i++) {
+            update(updates.symbolId(i), updates.symbol(i), updates.price(i));
+        }
+    }
+}
+
+interface ISubject {
+    void registerObserver(IObserver observer, String stockSymbol);
+    void removeObserver(IObserver observer, String stockSymbol);
+    void notifyObservers(String stockSymbol, double newPrice);
+    void setStockPrice(String stockSymbol, double price);
+}
+
+// Способ доставки обновлений цен наблюдателям
+interface ITickDelivery {
+    void deliver(IObserver observer, int symbolId, String stockSymbol, double newPrice);
+
+    // Одно обновление цены для всех подписчиков акции
+    default void deliverAll(IObserver[] observers, int symbolId, String stockSymbol, double newPrice) {
+        for (IObserver observer : observers) {
+            deliver(observer, symbolId, stockSymbol, newPrice);
+        }
+    }
+
+    // Доставка без поддержки пакетов передаёт обновления по одному
+    default void deliverBatch(IObserver observer, PriceBatch updates) {
+        for (int i = 0; i < updates.size(); i++) {
+            deliver(observer, updates.symbolId(i), updates.symbol(i), updates.price(i));
+        }
+    }
+
+    // У наблюдателя не осталось подписок: доставка может освободить связанные с ним ресурсы
+    default void release(IObserver observer) {
+    }
+
+    void shutdown();
+}
+
+// У каждого наблюдателя свой ограниченный почтовый ящик, который разбирает не более одного
+// потока фиксированного пула за раз: обновления приходят в порядке публикации, а число потоков ограничено
+class MailboxDelivery implements ITickDelivery {
+    private static final int DRAIN_BATCH = 64;
+
+    private final ExecutorService workers;
+    private final int mailboxCapacity;
+    private final ConcurrentMap<IObserver, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    public MailboxDelivery(int workerCount, int mailboxCapacity) {
+        this(newWorkerPool(workerCount), mailboxCapacity);
+    }
+
+    // Ящики разбираются задачами переданного исполнителя, например виртуальными потоками
+    public MailboxDelivery(ExecutorService workers, int mailboxCapacity) {
+        if (workers == null || mailboxCapacity <= 0) throw new IllegalArgumentException("Некорректные параметры доставки.");
+        this.workers = workers;
+        this.mailboxCapacity = mailboxCapacity;
+    }
+
+    private static ExecutorService newWorkerPool(int workerCount) {
+        if (workerCount <= 0) throw new IllegalArgumentException("Некорректные параметры доставки.");
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(workerCount, r -> new Thread(r, "observer-delivery-" + threadNumber.incrementAndGet()));
+    }
+
+    public MailboxDelivery() {
+        this(Runtime.getRuntime().availableProcessors(), 1024);
+    }
+
+    public void deliver(IObserver observer, int symbolId, String stockSymbol, double newPrice) {
+        Mailbox mailbox = mailboxes.get(observer);
+        if (mailbox == null) {
+            mailbox = mailboxes.computeIfAbsent(observer, o -> new QueueMailbox(o, mailboxCapacity));
+        }
+        mailbox.put(symbolId, stockSymbol, newPrice);
+        mailbox.schedule();
+    }
+
+    public void deliverBatch(IObserver observer, PriceBatch updates) {
+        Mailbox mailbox = mailboxes.get(observer);
+        if (mailbox == null) {
+            mailbox = mailboxes.computeIfAbsent(observer, o -> new QueueMailbox(o, mailboxCapacity));
+        }
+        mailbox.put(updates);
+        mailbox.schedule();
+    }
+
+    // Включает для медленного наблюдателя доставку только последней цены по каждой акции.
+    // Вызывается до первой доставки этому наблюдателю
+    public void enableConflation(IObserver observer) {
+        Mailbox mailbox = mailboxes.computeIfAbsent(observer, ConflatingMailbox::new);
+        if (!(mailbox instanceof ConflatingMailbox)) {
+            throw new IllegalStateException("Наблюдатель уже получает обновления без объединения.");
+        }
+    }
+
+    // Ящик удаляется, когда опустеет; настройка объединения при этом сбрасывается
+    public void release(IObserver observer) {
+        Mailbox mailbox = mailboxes.get(observer);
+        if (mailbox != null) mailbox.release();
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private abstract class Mailbox implements Runnable {
+        final IObserver observer;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean released;
+        // Заполняются poll() в потоке, разбирающем ящик
+        int polledSymbolId;
+        String polledSymbol;
+        double polledPrice;
+        PriceBatch polledBatch;
+
+        Mailbox(IObserver observer) {
+            this.observer = observer;
+        }
+
+        abstract void put(int symbolId, String stockSymbol, double newPrice);
+
+        abstract void put(PriceBatch updates);
+
+        abstract boolean poll();
+
+        abstract boolean isEmpty();
+
+        void release() {
+            released = true;
+            if (!scheduled.get() && isEmpty()) mailboxes.remove(observer, this);
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Пул остановлен: дочитываем ящик в текущем потоке
+                    run();
+                }
+            }
+        }
+
+        public void run() {
+            // После остановки пула ящик дочитывается до конца, иначе — порциями, чтобы не занимать поток
+            int limit = workers.isShutdown() ? Integer.MAX_VALUE : DRAIN_BATCH;
+            for (int i = 0; i < limit && poll(); i++) {
+                try {
+                    if (polledBatch != null) {
+                        observer.updateAll(polledBatch);
+                        polledBatch = null;
+                    } else {
+                        observer.update(polledSymbolId, polledSymbol, polledPrice);
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Ошибка наблюдателя: " + e);
+                }
+            }
+            scheduled.set(false);
+            if (!isEmpty()) schedule();
+            else if (released) mailboxes.remove(observer, this);
+        }
+    }
+
+    private final class QueueMailbox extends Mailbox {
+        private final int[] symbolIds;
+        private final String[] symbols;
+        private final double[] prices;
+        private final PriceBatch[] batches;
+        private int head;
+        private int size;
+
+        QueueMailbox(IObserver observer, int capacity) {
+            super(observer);
+            this.symbolIds = new int[capacity];
+            this.symbols = new String[capacity];
+            this.prices = new double[capacity];
+            this.batches = new PriceBatch[capacity];
+        }
+
+        void put(int symbolId, String stockSymbol, double newPrice) {
+            enqueue(symbolId, stockSymbol, newPrice, null);
+        }
+
+        // Пакет занимает в ящике одно место
+        void put(PriceBatch updates) {
+            enqueue(-1, null, 0, updates);
+        }
+
+        // Блокирует отправителя, пока в ящике нет места
+        private synchronized void enqueue(int symbolId, String stockSymbol, double newPrice, PriceBatch updates) {
+            boolean interrupted = false;
+            while (size == symbols.length) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            int tail = (head + size) % symbols.length;
+            symbolIds[tail] = symbolId;
+            symbols[tail] = stockSymbol;
+            prices[tail] = newPrice;
+            batches[tail] = updates;
+            size++;
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        synchronized boolean poll() {
+            if (size == 0) return false;
+            polledSymbolId = symbolIds[head];
+            polledSymbol = symbols[head];
+            polledPrice = prices[head];
+            polledBatch = batches[head];
+            symbols[head] = null;
+            batches[head] = null;
+            head = (head + 1) % symbols.length;
+            size--;
+            notifyAll();
+            return true;
+        }
+
+        synchronized boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    // Хранит по одной ячейке на акцию: новая цена перезаписывает ещё не доставленную,
+    // поэтому память ограничена числом акций, а не частотой тиков
+    private final class ConflatingMailbox extends Mailbox {
+        private LatestPrice[] latestBySymbol = new LatestPrice[16];
+        private final ArrayDeque<LatestPrice> pending = new ArrayDeque<>();
+
+        ConflatingMailbox(IObserver observer) {
+            super(observer);
+        }
+
+        synchronized void put(int symbolId, String stockSymbol, double newPrice) {
+            if (symbolId >= latestBySymbol.length) {
+                latestBySymbol = Arrays.copyOf(latestBySymbol, Math.max(symbolId + 1, latestBySymbol.length * 2));
+            }
+            LatestPrice latest = latestBySymbol[symbolId];
+            if (latest == null) {
+                latest = new LatestPrice(symbolId, stockSymbol);
+                latestBySymbol[symbolId] = latest;
+            }
+            latest.price = newPrice;
+            if (!latest.pending) {
+                latest.pending = true;
+                pending.addLast(latest);
+            }
+        }
+
+        synchronized void put(PriceBatch updates) {
+            for (int i = 0; i < updates.size(); i++) {
+                put(updates.symbolId(i), updates.symbol(i), updates.price(i));
+            }
+        }
+
+        synchronized boolean poll() {
+            LatestPrice latest = pending.pollFirst();
+            if (latest == null) return false;
+            latest.pending = false;
+            polledSymbolId = latest.symbolId;
+            polledSymbol = latest.symbol;
+            polledPrice = latest.price;
+            return true;
+        }
+
+        synchronized boolean isEmpty() {
+            return pending.isEmpty();
+        }
+    }
+
+    private static final class LatestPrice {
+        final int symbolId;
+        final String symbol;
+        double price;
+        boolean pending;
+
+        LatestPrice(int symbolId, String symbol) {
+            this.symbolId = symbolId;
+            this.symbol = symbol;
+        }
+    }
+}
+
+// Каждое обновление — отдельная задача исполнителя, без гарантии порядка между задачами
+class ExecutorDelivery implements ITickDelivery {
+    private final ExecutorService executor;
+
+    public ExecutorDelivery(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public void deliver(IObserver observer, int symbolId, String stockSymbol, double newPrice) {
+        executor.execute(() -> {
+            try {
+                observer.update(symbolId, stockSymbol, newPrice);
+            } catch (RuntimeException e) {
+                System.out.println("Ошибка наблюдателя: " + e);
+            }
+        });
+    }
+
+    public void deliverBatch(IObserver observer, PriceBatch updates) {
+        executor.execute(() -> {
+            try {
+                observer.updateAll(updates);
+            } catch (RuntimeException e) {
+                System.out.println("Ошибка наблюдателя: " + e);
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
+
+// Режимы доставки для StockExchange. Виртуальные потоки подходят наблюдателям, блокирующимся на вводе-выводе
+enum DeliveryMode {
+    // Почтовые ящики на фиксированном пуле платформенных потоков
+    MAILBOX_FIXED_POOL {
+        ITickDelivery create() {
+            return new MailboxDelivery();
+        }
+    },
+    // Задача на каждое обновление в кэширующем пуле платформенных потоков
+    PLATFORM_PER_DELIVERY {
+        ITickDelivery create() {
+            return new ExecutorDelivery(Executors.newCachedThreadPool());
+        }
+    },
+    // Виртуальный поток на каждое обновление
+    VIRTUAL_PER_DELIVERY {
+        ITickDelivery create() {
+            return new ExecutorDelivery(newVirtualThreadExecutor());
+        }
+    },
+    // Почтовый ящик наблюдателя разбирается в виртуальном потоке: порядок сохраняется,
+    // а блокировка наблюдателя не занимает платформенный поток
+    VIRTUAL_PER_OBSERVER {
+        ITickDelivery create() {
+            return new MailboxDelivery(newVirtualThreadExecutor(), 1024);
+        }
+    };
+
+    abstract ITickDelivery create();
+
+    boolean isSupported() {
+        return (this != VIRTUAL_PER_DELIVERY && this != VIRTUAL_PER_OBSERVER) || virtualThreadsAvailable();
+    }
+
+    static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Через отражение, чтобы код собирался и на JDK без виртуальных потоков (до Java 21)
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Виртуальные потоки недоступны в этой версии Java.");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Не удалось создать исполнитель виртуальных потоков.", e);
+        }
+    }
+}
+
+// Сравнение режимов доставки при большом числе блокирующихся наблюдателей.
+// Запуск после сборки (см. PricingBenchmark): java -Dfile.encoding=UTF-8 -cp out DeliveryBenchmark [наблюдателей] [тиков] [блокировка, мс]
+final class DeliveryBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int observerCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long blockMillis = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        System.out.printf("Наблюдателей: %d, тиков: %d, блокировка: %d мс%n", observerCount, ticks, blockMillis);
+        for (DeliveryMode mode : DeliveryMode.values()) {
+            if (!mode.isSupported()) {
+                System.out.printf("%-24s недоступен%n", mode);
+                continue;
+            }
+            run(mode, observerCount, ticks, blockMillis);
+        }
+    }
+
+    private static void run(DeliveryMode mode, int observerCount, int ticks, long blockMillis) throws InterruptedException {
+        long expected = (long) observerCount * ticks;
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong delivered = new AtomicLong();
+        ITickDelivery delivery = mode.create();
+        IObserver[] observers = new IObserver[observerCount];
+        for (int i = 0; i < observerCount; i++) {
+            observers[i] = new BlockingObserver(blockMillis, delivered, expected, done);
+        }
+
+        int peakThreads = Thread.activeCount();
+        long start = System.nanoTime();
+        for (int tick = 0; tick < ticks; tick++) {
+            delivery.deliverAll(observers, 0, BlockingObserver.SYMBOL, tick);
+            peakThreads = Math.max(peakThreads, Thread.activeCount());
+        }
+        boolean completed = done.await(5, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        peakThreads = Math.max(peakThreads, Thread.activeCount());
+        delivery.shutdown();
+
+        System.out.printf("%-24s %10.0f доставок/с, %8.1f мс, платформенных потоков до %d%s%n", mode,
+                delivered.get() * 1e9 / elapsed, elapsed / 1e6, peakThreads, completed ? "" : " (не завершено)");
+    }
+
+    private static final class BlockingObserver implements IObserver {
+        static final String SYMBOL = "BENCH";
+
+        private final long blockMillis;
+        private final AtomicLong delivered;
+        private final long expected;
+        private final CountDownLatch done;
+
+        BlockingObserver(long blockMillis, AtomicLong delivered, long expected, CountDownLatch done) {
+            this.blockMillis = blockMillis;
+            this.delivered = delivered;
+            this.expected = expected;
+            this.done = done;
+        }
+
+        public void update(String stockSymbol, double newPrice) {
+            try {
+                Thread.sleep(blockMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (delivered.incrementAndGet() == expected) done.countDown();
+        }
+    }
+}
+
+enum WaitStrategy {
+    // Минимальная задержка ценой полностью занятого ядра
+    BUSY_SPIN {
+        void idle() {
+            Thread.onSpinWait();
+        }
+    },
+    YIELD {
+        void idle() {
+            Thread.yield();
+        }
+    },
+    // Экономит процессор, добавляя задержку до времени парковки
+    PARK {
+        void idle() {
+            LockSupport.parkNanos(50_000);
+        }
+    };
+
+    abstract void idle();
+}
+
+// Кольцевой буфер обновлений: setStockPrice записывает тик в заранее выделенную ячейку,
+// несколько потоков-потребителей читают все тики по своим последовательностям.
+// Наблюдатели закреплены за потребителями по identityHashCode, поэтому каждый получает цены по порядку.
+// Рассчитан на один публикующий поток; одновременные публикации сериализуются
+class RingBufferDelivery implements ITickDelivery {
+    // Шаг между последовательностями потребителей в AtomicLongArray, чтобы они не делили строку кэша
+    private static final int SEQUENCE_STRIDE = 16;
+
+    private final int mask;
+    private final int[] symbolIds;
+    private final String[] symbols;
+    private final double[] prices;
+    private final IObserver[][] recipients;
+    // Получатель одиночной доставки; тогда recipients[slot] == null и массив на тик не создаётся
+    private final IObserver[] singleRecipients;
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final AtomicLongArray consumerSequences;
+    private final int consumerCount;
+    private final WaitStrategy waitStrategy;
+    private final Thread[] consumers;
+    private volatile boolean running = true;
+    private long cachedGatingSequence = -1;
+
+    public RingBufferDelivery(int capacity, int consumerCount, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1 || consumerCount <= 0 || waitStrategy == null) {
+            throw new IllegalArgumentException("Некорректные параметры кольцевого буфера.");
+        }
+        this.mask = capacity - 1;
+        this.symbolIds = new int[capacity];
+        this.symbols = new String[capacity];
+        this.prices = new double[capacity];
+        this.recipients = new IObserver[capacity][];
+        this.singleRecipients = new IObserver[capacity];
+        this.consumerCount = consumerCount;
+        this.waitStrategy = waitStrategy;
+        this.consumerSequences = new AtomicLongArray(consumerCount * SEQUENCE_STRIDE);
+        this.consumers = new Thread[consumerCount];
+        for (int i = 0; i < consumerCount; i++) {
+            consumerSequences.set(i * SEQUENCE_STRIDE, -1);
+            int consumer = i;
+            consumers[i] = new Thread(() -> consume(consumer), "tick-consumer-" + i);
+            consumers[i].start();
+        }
+    }
+
+    public void deliver(IObserver observer, int symbolId, String stockSymbol, double newPrice) {
+        publish(null, observer, symbolId, stockSymbol, newPrice);
+    }
+
+    public void deliverAll(IObserver[] observers, int symbolId, String stockSymbol, double newPrice) {
+        publish(observers, null, symbolId, stockSymbol, newPrice);
+    }
+
+    private synchronized void publish(IObserver[] observers, IObserver single, int symbolId, String stockSymbol, double newPrice) {
+        if (!running) throw new IllegalStateException("Доставка остановлена.");
+        long next = cursor.get() + 1;
+        long wrapPoint = next - symbols.length;
+        if (wrapPoint > cachedGatingSequence) {
+            long gating;
+            while (wrapPoint > (gating = minimumConsumerSequence())) {
+                waitStrategy.idle();
+            }
+            cachedGatingSequence = gating;
+        }
+        int slot = (int) next & mask;
+        symbolIds[slot] = symbolId;
+        symbols[slot] = stockSymbol;
+        prices[slot] = newPrice;
+        recipients[slot] = observers;
+        singleRecipients[slot] = single;
+        cursor.set(next);
+    }
+
+    private long minimumConsumerSequence() {
+        long minimum = Long.MAX_VALUE;
+        for (int i = 0; i < consumerCount; i++) {
+            minimum = Math.min(minimum, consumerSequences.get(i * SEQUENCE_STRIDE));
+        }
+        return minimum;
+    }
+
+    private void consume(int consumer) {
+        long next = consumerSequences.get(consumer * SEQUENCE_STRIDE) + 1;
+        while (true) {
+            long available = cursor.get();
+            if (next > available) {
+                // shutdown и publish взаимно исключены: после остановки курсор уже окончательный,
+                // но мог сдвинуться между чтением курсора и проверкой running
+                if (!running) {
+                    if (cursor.get() < next) return;
+                    continue;
+                }
+                waitStrategy.idle();
+                continue;
+            }
+            for (; next <= available; next++) {
+                int slot = (int) next & mask;
+                int symbolId = symbolIds[slot];
+                String stockSymbol = symbols[slot];
+                double newPrice = prices[slot];
+                IObserver[] observers = recipients[slot];
+                if (observers == null) {
+                    deliverTo(consumer, singleRecipients[slot], symbolId, stockSymbol, newPrice);
+                } else {
+                    for (IObserver observer : observers) {
+                        deliverTo(consumer, observer, symbolId, stockSymbol, newPrice);
+                    }
+                }
+            }
+            consumerSequences.lazySet(consumer * SEQUENCE_STRIDE, available);
+        }
+    }
+
+    // Каждого наблюдателя обслуживает один потребитель, что сохраняет порядок его обновлений
+    private void deliverTo(int consumer, IObserver observer, int symbolId, String stockSymbol, double newPrice) {
+        if ((System.identityHashCode(observer) & Integer.MAX_VALUE) % consumerCount != consumer) return;
+        try {
+            observer.update(symbolId, stockSymbol, newPrice);
+        } catch (RuntimeException e) {
+            System.out.println("Ошибка наблюдателя: " + e);
+        }
+    }
+
+    // Потребители дочитывают уже опубликованные тики и завершаются
+    public synchronized void shutdown() {
+        running = false;
+    }
+}
+
+// Типы событий биржи и наблюдателей; текстовое представление строится только при выводе
+enum EventType {
+    PRICE_UPDATED {
+        void format(StringBuilder out, String actor, String symbol, double price, double threshold) {
+            out.append("Цена акции ").append(symbol).append(" обновлена: ").append(price);
+        }
+    },
+    PRICE_REJECTED {
+        void format(StringBuilder out, String actor, String symbol, double price, double threshold) {
+            out.append("Ошибка: цена акции не может быть отрицательной.");
+        }
+    },
+    OBSERVER_REGISTERED {
+        void format(StringBuilder out, String actor, String symbol, double price, double threshold) {
+            out.append("Наблюдатель подписан на акцию: ").append(symbol);
+        }
+    },
+    OBSERVER_REMOVED {
+        void format(StringBuilder out, String actor, String symbol, double price, double threshold) {
+            out.append("Наблюдатель отписан от акции: ").append(symbol);
+        }
+    },
+    TRADER_NOTIFIED {
+        void format(StringBuilder out, String actor, String symbol, double price, double threshold) {
+            out.append("[Трейдер ").append(actor).append("] Акция ").append(symbol).append(" теперь стоит: ").append(price);
+        }
+    },
+    BOT_BUY {
+        void format(StringBuilder out, String actor, String symbol, double price, double threshold) {
+            out.append("[Робот ").append(actor).append("] ПОКУПКА акции ").append(symbol).append(" по цене ").append(price)
+                    .append(" (порог: ").append(threshold).append(')');
+        }
+    },
+    BOT_SELL {
+        void format(StringBuilder out, String actor, String symbol, double price, double threshold) {
+            out.append("[Робот ").append(actor).append("] ПРОДАЖА акции ").append(symbol).append(" по цене ").append(price);
+        }
+    };
+
+    abstract void format(StringBuilder out, String actor, String symbol, double price, double threshold);
+}
+
+// Приёмник событий. actor — имя наблюдателя (null для событий биржи), threshold — NaN, если не применим
+interface IEventSink {
+    IEventSink NO_OP = (type, actor, symbol, price, threshold) -> { };
+
+    void onEvent(EventType type, String actor, String symbol, double price, double threshold);
+}
+
+// Синхронный вывод в System.out в прежнем текстовом виде
+final class ConsoleEventSink implements IEventSink {
+    static final ConsoleEventSink INSTANCE = new ConsoleEventSink();
+
+    private ConsoleEventSink() {
+    }
+
+    public void onEvent(EventType type, String actor, String symbol, double price, double threshold) {
+        StringBuilder line = new StringBuilder(64);
+        type.format(line, actor, symbol, price, threshold);
+        System.out.println(line);
+    }
+}
+
+// Асинхронный журнал: событие копируется в заранее выделенную ячейку кольцевого буфера без создания объектов,
+// форматирование и вывод выполняет отдельный поток. При переполнении событие отбрасывается и учитывается
+final class AsyncEventSink implements IEventSink, AutoCloseable {
+    private final int mask;
+    private final EventType[] types;
+    private final String[] actors;
+    private final String[] symbols;
+    private final double[] prices;
+    private final double[] thresholds;
+    // Номер последовательности, записанной в ячейку; поток вывода ждёт, пока он совпадёт с ожидаемым
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final PrintStream out;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public AsyncEventSink(int capacity, PrintStream out) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1 || out == null) {
+            throw new IllegalArgumentException("Некорректные параметры журнала.");
+        }
+        this.mask = capacity - 1;
+        this.types = new EventType[capacity];
+        this.actors = new String[capacity];
+        this.symbols = new String[capacity];
+        this.prices = new double[capacity];
+        this.thresholds = new double[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        this.out = out;
+        this.writer = new Thread(this::drain, "event-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void onEvent(EventType type, String actor, String symbol, double price, double threshold) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (!running || sequence - consumed.get() > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        types[slot] = type;
+        actors[slot] = actor;
+        symbols[slot] = symbol;
+        prices[slot] = price;
+        thresholds[slot] = threshold;
+        published.set(slot, sequence);
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(128);
+        long next = 0;
+        while (true) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                if (!running && claimed.get() == next) break;
+                out.flush();
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            line.setLength(0);
+            types[slot].format(line, actors[slot], symbols[slot], prices[slot], thresholds[slot]);
+            actors[slot] = null;
+            symbols[slot] = null;
+            consumed.lazySet(++next);
+            out.println(line);
+        }
+        out.flush();
+    }
+
+    // Дописывает уже принятые события и останавливает поток вывода
+    public void close() {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Плотные целочисленные идентификаторы акций: строка хешируется один раз при интернировании,
+// дальше биржа работает с индексами массивов
+final class SymbolTable {
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final String[] names;
+    // volatile-запись size публикует names[size - 1]
+    private volatile int size;
+
+    public SymbolTable(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Некорректная ёмкость таблицы акций.");
+        this.names = new String[capacity];
+    }
+
+    public int intern(String symbol) {
+        Integer id = ids.get(symbol);
+        return id != null ? id : register(symbol);
+    }
+
+    private synchronized int register(String symbol) {
+        if (symbol == null) throw new IllegalArgumentException("Не задан символ акции.");
+        Integer existing = ids.get(symbol);
+        if (existing != null) return existing;
+        int id = size;
+        if (id == names.length) throw new IllegalStateException("Таблица акций заполнена.");
+        names[id] = symbol;
+        size = id + 1;
+        ids.put(symbol, id);
+        return id;
+    }
+
+    // -1, если акция не встречалась
+    public int find(String symbol) {
+        Integer id = ids.get(symbol);
+        return id != null ? id : -1;
+    }
+
+    public String name(int symbolId) {
+        checkId(symbolId);
+        return names[symbolId];
+    }
+
+    public void checkId(int symbolId) {
+        if (symbolId < 0 || symbolId >= size) throw new IllegalArgumentException("Неизвестный идентификатор акции: " + symbolId);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return names.length;
+    }
+}
+
+// Префиксное дерево шаблонов подписки вида «NASDAQ:*» или «TS*»: поиск подходящих наблюдателей
+// проходит по символам акции и не зависит от числа шаблонов
+final class SymbolPatternTrie {
+    private final Node root = new Node();
+
+    // Шаблон — префикс со звёздочкой в конце; одиночная «*» соответствует всем акциям
+    static String prefixOf(String pattern) {
+        if (pattern == null || pattern.isEmpty() || pattern.indexOf('*') != pattern.length() - 1) {
+            throw new IllegalArgumentException("Некорректный шаблон подписки: " + pattern);
+        }
+        return pattern.substring(0, pattern.length() - 1);
+    }
+
+    boolean add(String prefix, IObserver observer) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.childOrCreate(prefix.charAt(i));
+        }
+        for (IObserver existing : node.observers) {
+            if (existing == observer) return false;
+        }
+        node.observers = Arrays.copyOf(node.observers, node.observers.length + 1);
+        node.observers[node.observers.length - 1] = observer;
+        return true;
+    }
+
+    boolean remove(String prefix, IObserver observer) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        if (node == null) return false;
+        for (int i = 0; i < node.observers.length; i++) {
+            if (node.observers[i] == observer) {
+                IObserver[] updated = new IObserver[node.observers.length - 1];
+                System.arraycopy(node.observers, 0, updated, 0, i);
+                System.arraycopy(node.observers, i + 1, updated, i, updated.length - i);
+                node.observers = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Добавляет в matches наблюдателей всех шаблонов, префикс которых совпадает с началом символа
+    void collect(String symbol, Collection<IObserver> matches) {
+        Node node = root;
+        Collections.addAll(matches, node.observers);
+        for (int i = 0; i < symbol.length(); i++) {
+            node = node.child(symbol.charAt(i));
+            if (node == null) return;
+            Collections.addAll(matches, node.observers);
+        }
+    }
+
+    private static final class Node {
+        private static final IObserver[] EMPTY = new IObserver[0];
+
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        IObserver[] observers = EMPTY;
+
+        Node child(char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) return children[i];
+            }
+            return null;
+        }
+
+        Node childOrCreate(char key) {
+            Node child = child(key);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = key;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
+
+// Уровни срабатывания по одной акции, отсортированные по возрастанию: покупка выше уровня,
+// продажа ниже уровня. Неизменяемый снимок, заменяемый целиком при изменении
+final class TriggerLevels {
+    static final TriggerLevels EMPTY = new TriggerLevels(new double[0], new IObserver[0], new double[0], new IObserver[0]);
+
+    private final double[] buyLevels;
+    private final IObserver[] buyObservers;
+    private final double[] sellLevels;
+    private final IObserver[] sellObservers;
+
+    private TriggerLevels(double[] buyLevels, IObserver[] buyObservers, double[] sellLevels, IObserver[] sellObservers) {
+        this.buyLevels = buyLevels;
+        this.buyObservers = buyObservers;
+        this.sellLevels = sellLevels;
+        this.sellObservers = sellObservers;
+    }
+
+    boolean isEmpty() {
+        return buyLevels.length == 0 && sellLevels.length == 0;
+    }
+
+    boolean contains(IObserver observer) {
+        return indexOf(buyObservers, observer) >= 0;
+    }
+
+    TriggerLevels with(IObserver observer, double buyAbove, double sellBelow) {
+        TriggerLevels base = without(observer);
+        int buyIndex = upperBound(base.buyLevels, buyAbove);
+        int sellIndex = upperBound(base.sellLevels, sellBelow);
+        return new TriggerLevels(insert(base.buyLevels, buyIndex, buyAbove), insert(base.buyObservers, buyIndex, observer),
+                insert(base.sellLevels, sellIndex, sellBelow), insert(base.sellObservers, sellIndex, observer));
+    }
+
+    TriggerLevels without(IObserver observer) {
+        int buyIndex = indexOf(buyObservers, observer);
+        if (buyIndex < 0) return this;
+        int sellIndex = indexOf(sellObservers, observer);
+        return new TriggerLevels(remove(buyLevels, buyIndex), remove(buyObservers, buyIndex),
+                remove(sellLevels, sellIndex), remove(sellObservers, sellIndex));
+    }
+
+    // Передаёт в crossed наблюдателей, чьи уровни цена пересекла при переходе от previousPrice к newPrice.
+    // previousPrice = NaN — цены ещё не было, срабатывают все уровни, условие которых выполняется
+    void forEachCrossed(double previousPrice, double newPrice, Consumer<IObserver> crossed) {
+        boolean first = Double.isNaN(previousPrice);
+        if (first || newPrice > previousPrice) {
+            // Покупка: уровни L, для которых previousPrice <= L < newPrice
+            int from = first ? 0 : lowerBound(buyLevels, previousPrice);
+            int to = lowerBound(buyLevels, newPrice);
+            for (int i = from; i < to; i++) {
+                crossed.accept(buyObservers[i]);
+            }
+        }
+        if (first || newPrice < previousPrice) {
+            // Продажа: уровни L, для которых newPrice < L <= previousPrice
+            int from = upperBound(sellLevels, newPrice);
+            int to = first ? sellLevels.length : upperBound(sellLevels, previousPrice);
+            for (int i = from; i < to; i++) {
+                crossed.accept(sellObservers[i]);
+            }
+        }
+    }
+
+    // Первый индекс с levels[i] >= key
+    private static int lowerBound(double[] levels, double key) {
+        int low = 0;
+        int high = levels.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (levels[middle] < key) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    // Первый индекс с levels[i] > key
+    private static int upperBound(double[] levels, double key) {
+        int low = 0;
+        int high = levels.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (levels[middle] <= key) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private static int indexOf(IObserver[] observers, IObserver observer) {
+        for (int i = 0; i < observers.length; i++) {
+            if (observers[i] == observer) return i;
+        }
+        return -1;
+    }
+
+    private static double[] insert(double[] values, int index, double value) {
+        double[] updated = new double[values.length + 1];
+        System.arraycopy(values, 0, updated, 0, index);
+        updated[index] = value;
+        System.arraycopy(values, index, updated, index + 1, values.length - index);
+        return updated;
+    }
+
+    private static IObserver[] insert(IObserver[] values, int index, IObserver value) {
+        IObserver[] updated = new IObserver[values.length + 1];
+        System.arraycopy(values, 0, updated, 0, index);
+        updated[index] = value;
+        System.arraycopy(values, index, updated, index + 1, values.length - index);
+        return updated;
+    }
+
+    private static double[] remove(double[] values, int index) {
+        double[] updated = new double[values.length - 1];
+        System.arraycopy(values, 0, updated, 0, index);
+        System.arraycopy(values, index + 1, updated, index, updated.length - index);
+        return updated;
+    }
+
+    private static IObserver[] remove(IObserver[] values, int index) {
+        IObserver[] updated = new IObserver[values.length - 1];
+        System.arraycopy(values, 0, updated, 0, index);
+        System.arraycopy(values, index + 1, updated, index, updated.length - index);
+        return updated;
+    }
+}
+
+class StockExchange implements ISubject {
+    public static final int DEFAULT_SYMBOL_CAPACITY = 1 << 17;
+    private static final IObserver[] NO_OBSERVERS = new IObserver[0];
+
+    private final SymbolTable symbols;
+    // Биты цены (Double.doubleToRawLongBits) по идентификатору акции; NaN — цена ещё не устанавливалась.
+    // Атомарный массив даёт видимость записей из разных потоков без хеширования и упаковки
+    private final AtomicLongArray stockPrices;
+    // Единственный источник подписок: обратный индекс акция → массив наблюдателей.
+    // Массив заменяется целиком при подписке/отписке, поэтому оповещение обходит
+    // неизменяемый снимок без блокировок. Изменения сериализуются на subscriptionsByObserver
+    private final AtomicReferenceArray<IObserver[]> observersBySymbol;
+    private final Map<IObserver, BitSet> subscriptionsByObserver = new IdentityHashMap<>();
+    private final SymbolPatternTrie patterns = new SymbolPatternTrie();
+    private final Map<IObserver, Set<String>> patternsByObserver = new IdentityHashMap<>();
+    // Число акций, по которым у наблюдателя зарегистрированы пороги
+    private final Map<IObserver, Integer> triggerCountByObserver = new IdentityHashMap<>();
+    // Кэш получателей по акции: точные подписки плюс подходящие шаблоны; null — ещё не вычислен
+    private final AtomicReferenceArray<IObserver[]> targetsBySymbol;
+    // Пороговые наблюдатели получают обновление, только когда цена пересекла их уровень
+    private final AtomicReferenceArray<TriggerLevels> triggersBySymbol;
+    private final ITickDelivery delivery;
+    private volatile TickJournal journal;
+    private volatile IEventSink events = ConsoleEventSink.INSTANCE;
+
+    public StockExchange(ITickDelivery delivery, int symbolCapacity) {
+        this.delivery = delivery;
+        this.symbols = new SymbolTable(symbolCapacity);
+        this.stockPrices = new AtomicLongArray(symbolCapacity);
+        long unset = Double.doubleToRawLongBits(Double.NaN);
+        for (int i = 0; i < symbolCapacity; i++) {
+            stockPrices.set(i, unset);
+        }
+        this.observersBySymbol = new AtomicReferenceArray<>(symbolCapacity);
+        this.targetsBySymbol = new AtomicReferenceArray<>(symbolCapacity);
+        this.triggersBySymbol = new AtomicReferenceArray<>(symbolCapacity);
+    }
+
+    public StockExchange(ITickDelivery delivery) {
+        this(delivery, DEFAULT_SYMBOL_CAPACITY);
+    }
+
+    public StockExchange(DeliveryMode mode) {
+        this(mode.create());
+    }
+
+    public StockExchange() {
+        this(DeliveryMode.MAILBOX_FIXED_POOL);
+    }
+
+    public void setEventSink(IEventSink events) {
+        this.events = events != null ? events : IEventSink.NO_OP;
+    }
+
+    // Каждая принятая цена дописывается в журнал; null отключает запись.
+    // Журнал должен быть открыт с таблицей акций этой биржи
+    public void setJournal(TickJournal journal) {
+        if (journal != null && journal.getSymbols() != symbols) {
+            throw new IllegalArgumentException("Журнал открыт с другой таблицей акций.");
+        }
+        this.journal = journal;
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    public int symbolId(String stockSymbol) {
+        return symbols.intern(stockSymbol);
+    }
+
+    public void registerObserver(IObserver observer, String stockSymbol) {
+        subscribe(observer, symbols.intern(stockSymbol));
+    }
+
+    public void registerObserver(IObserver observer, int symbolId) {
+        subscribe(observer, symbolId);
+    }
+
+    public void removeObserver(IObserver observer, String stockSymbol) {
+        int symbolId = symbols.find(stockSymbol);
+        if (symbolId >= 0) unsubscribe(observer, symbolId);
+    }
+
+    public void removeObserver(IObserver observer, int symbolId) {
+        unsubscribe(observer, symbolId);
+    }
+
+    public void subscribe(IObserver observer, String... stockSymbols) {
+        int[] symbolIds = new int[stockSymbols.length];
+        for (int i = 0; i < stockSymbols.length; i++) {
+            symbolIds[i] = symbols.intern(stockSymbols[i]);
+        }
+        subscribe(observer, symbolIds);
+    }
+
+    // Подписка на несколько акций сразу: все идентификаторы проверяются заранее,
+    // и изменение индекса не пересекается с другими подписками и отписками
+    public void subscribe(IObserver observer, int... symbolIds) {
+        if (observer == null) throw new IllegalArgumentException("Не задан наблюдатель.");
+        for (int symbolId : symbolIds) {
+            symbols.checkId(symbolId);
+        }
+        int[] added = new int[symbolIds.length];
+        int addedCount = 0;
+        synchronized (subscriptionsByObserver) {
+            BitSet subscriptions = subscriptionsByObserver.computeIfAbsent(observer, o -> new BitSet());
+            for (int symbolId : symbolIds) {
+                if (subscriptions.get(symbolId)) continue;
+                subscriptions.set(symbolId);
+                IObserver[] observers = observersBySymbol.get(symbolId);
+                IObserver[] updated;
+                if (observers == null) {
+                    updated = new IObserver[] {observer};
+                } else {
+                    updated = Arrays.copyOf(observers, observers.length + 1);
+                    updated[observers.length] = observer;
+                }
+                observersBySymbol.set(symbolId, updated);
+                targetsBySymbol.set(symbolId, null);
+                added[addedCount++] = symbolId;
+            }
+        }
+        for (int i = 0; i < addedCount; i++) {
+            events.onEvent(EventType.OBSERVER_REGISTERED, null, symbols.name(added[i]), Double.NaN, Double.NaN);
+        }
+    }
+
+    public void unsubscribe(IObserver observer, int... symbolIds) {
+        for (int symbolId : symbolIds) {
+            symbols.checkId(symbolId);
+        }
+        int[] removed = new int[symbolIds.length];
+        int removedCount = 0;
+        synchronized (subscriptionsByObserver) {
+            BitSet subscriptions = subscriptionsByObserver.get(observer);
+            if (subscriptions == null) return;
+            for (int symbolId : symbolIds) {
+                if (!subscriptions.get(symbolId)) continue;
+                subscriptions.clear(symbolId);
+                removeFromIndex(observer, symbolId);
+                removed[removedCount++] = symbolId;
+            }
+            if (subscriptions.isEmpty()) {
+                subscriptionsByObserver.remove(observer);
+                releaseIfUnused(observer);
+            }
+        }
+        for (int i = 0; i < removedCount; i++) {
+            events.onEvent(EventType.OBSERVER_REMOVED, null, symbols.name(removed[i]), Double.NaN, Double.NaN);
+        }
+    }
+
+    public void unsubscribeAll(IObserver observer) {
+        unsubscribe(observer, getSubscriptions(observer));
+    }
+
+    // Идентификаторы акций, на которые подписан наблюдатель
+    public int[] getSubscriptions(IObserver observer) {
+        synchronized (subscriptionsByObserver) {
+            BitSet subscriptions = subscriptionsByObserver.get(observer);
+            return subscriptions != null ? subscriptions.stream().toArray() : new int[0];
+        }
+    }
+
+    private void removeFromIndex(IObserver observer, int symbolId) {
+        IObserver[] observers = observersBySymbol.get(symbolId);
+        int index = indexOf(observers, observer);
+        IObserver[] updated = null;
+        if (observers.length > 1) {
+            updated = new IObserver[observers.length - 1];
+            System.arraycopy(observers, 0, updated, 0, index);
+            System.arraycopy(observers, index + 1, updated, index, observers.length - index - 1);
+        }
+        observersBySymbol.set(symbolId, updated);
+        targetsBySymbol.set(symbolId, null);
+    }
+
+    // Подписка по шаблону вида «NASDAQ:*»; действует и для акций, которые появятся позже
+    public void subscribePattern(IObserver observer, String pattern) {
+        if (observer == null) throw new IllegalArgumentException("Не задан наблюдатель.");
+        String prefix = SymbolPatternTrie.prefixOf(pattern);
+        synchronized (subscriptionsByObserver) {
+            if (!patterns.add(prefix, observer)) return;
+            patternsByObserver.computeIfAbsent(observer, o -> new HashSet<>()).add(pattern);
+            invalidateTargets();
+        }
+        events.onEvent(EventType.OBSERVER_REGISTERED, null, pattern, Double.NaN, Double.NaN);
+    }
+
+    public void unsubscribePattern(IObserver observer, String pattern) {
+        String prefix = SymbolPatternTrie.prefixOf(pattern);
+        synchronized (subscriptionsByObserver) {
+            if (!patterns.remove(prefix, observer)) return;
+            Set<String> observerPatterns = patternsByObserver.get(observer);
+            observerPatterns.remove(pattern);
+            if (observerPatterns.isEmpty()) {
+                patternsByObserver.remove(observer);
+                releaseIfUnused(observer);
+            }
+            invalidateTargets();
+        }
+        events.onEvent(EventType.OBSERVER_REMOVED, null, pattern, Double.NaN, Double.NaN);
+    }
+
+    // Наблюдатель получит update, когда цена поднимется выше buyAbove или опустится ниже sellBelow.
+    // Повторная регистрация по той же акции заменяет уровни
+    public void registerTrigger(IObserver observer, String stockSymbol, double buyAbove, double sellBelow) {
+        if (observer == null || Double.isNaN(buyAbove) || Double.isNaN(sellBelow)) {
+            throw new IllegalArgumentException("Некорректные параметры порога.");
+        }
+        int symbolId = symbols.intern(stockSymbol);
+        synchronized (subscriptionsByObserver) {
+            TriggerLevels levels = triggersBySymbol.get(symbolId);
+            if (levels == null) levels = TriggerLevels.EMPTY;
+            if (!levels.contains(observer)) triggerCountByObserver.merge(observer, 1, Integer::sum);
+            triggersBySymbol.set(symbolId, levels.with(observer, buyAbove, sellBelow));
+        }
+    }
+
+    public void removeTrigger(IObserver observer, String stockSymbol) {
+        int symbolId = symbols.find(stockSymbol);
+        if (symbolId < 0) return;
+        synchronized (subscriptionsByObserver) {
+            TriggerLevels levels = triggersBySymbol.get(symbolId);
+            if (levels == null || !levels.contains(observer)) return;
+            TriggerLevels updated = levels.without(observer);
+            triggersBySymbol.set(symbolId, updated.isEmpty() ? null : updated);
+            if (triggerCountByObserver.merge(observer, -1, Integer::sum) == 0) {
+                triggerCountByObserver.remove(observer);
+                releaseIfUnused(observer);
+            }
+        }
+    }
+
+    // Вызывается под блокировкой подписок: без подписок, шаблонов и порогов доставка забывает наблюдателя
+    private void releaseIfUnused(IObserver observer) {
+        if (!subscriptionsByObserver.containsKey(observer) && !patternsByObserver.containsKey(observer)
+                && !triggerCountByObserver.containsKey(observer)) {
+            delivery.release(observer);
+        }
+    }
+
+    private void fireTriggers(int symbolId, String stockSymbol, double previousPrice, double newPrice) {
+        TriggerLevels levels = triggersBySymbol.get(symbolId);
+        if (levels != null) {
+            levels.forEachCrossed(previousPrice, newPrice, observer -> delivery.deliver(observer, symbolId, stockSymbol, newPrice));
+        }
+    }
+
+    public Set<String> getPatterns(IObserver observer) {
+        synchronized (subscriptionsByObserver) {
+            Set<String> observerPatterns = patternsByObserver.get(observer);
+            return observerPatterns != null ? new HashSet<>(observerPatterns) : Collections.emptySet();
+        }
+    }
+
+    private void invalidateTargets() {
+        for (int symbolId = 0; symbolId < symbols.size(); symbolId++) {
+            targetsBySymbol.set(symbolId, null);
+        }
+    }
+
+    // Получатели обновлений акции; после изменения подписок вычисляются один раз и кэшируются
+    private IObserver[] targets(int symbolId) {
+        IObserver[] targets = targetsBySymbol.get(symbolId);
+        return targets != null ? targets : resolveTargets(symbolId);
+    }
+
+    private IObserver[] resolveTargets(int symbolId) {
+        String stockSymbol = symbols.name(symbolId);
+        synchronized (subscriptionsByObserver) {
+            IObserver[] exact = observersBySymbol.get(symbolId);
+            Set<IObserver> matches = Collections.newSetFromMap(new IdentityHashMap<>());
+            if (exact != null) Collections.addAll(matches, exact);
+            patterns.collect(stockSymbol, matches);
+            IObserver[] targets = matches.isEmpty() ? NO_OBSERVERS : matches.toArray(new IObserver[0]);
+            targetsBySymbol.set(symbolId, targets);
+            return targets;
+        }
+    }
+
+    private static int indexOf(IObserver[] observers, IObserver observer) {
+        for (int i = 0; i < observers.length; i++) {
+            if (observers[i] == observer) return i;
+        }
+        return -1;
+    }
+
+    public IObserver[] getObservers(String stockSymbol) {
+        int symbolId = symbols.find(stockSymbol);
+        return symbolId >= 0 ? getObservers(symbolId) : NO_OBSERVERS;
+    }
+
+    // Все получатели обновлений акции, включая подписанных по шаблону
+    public IObserver[] getObservers(int symbolId) {
+        symbols.checkId(symbolId);
+        return targets(symbolId).clone();
+    }
+
+    public void notifyObservers(String stockSymbol, double newPrice) {
+        notifyObservers(symbols.intern(stockSymbol), newPrice);
+    }
+
+    public void notifyObservers(int symbolId, double newPrice) {
+        IObserver[] observers = targets(symbolId);
+        if (observers.length > 0) {
+            delivery.deliverAll(observers, symbolId, symbols.name(symbolId), newPrice);
+        }
+    }
+
+    public void setStockPrice(String stockSymbol, double price) {
+        setStockPrice(symbols.intern(stockSymbol), price);
+    }
+
+    public void setStockPrice(int symbolId, double price) {
+        symbols.checkId(symbolId);
+        if (price < 0) {
+            events.onEvent(EventType.PRICE_REJECTED, null, symbols.name(symbolId), price, Double.NaN);
+            return;
+        }
+        // Атомарная замена: при одновременных тиках каждое пересечение уровня видит ровно один из них
+        double previousPrice = Double.longBitsToDouble(stockPrices.getAndSet(symbolId, Double.doubleToRawLongBits(price)));
+        String stockSymbol = symbols.name(symbolId);
+        events.onEvent(EventType.PRICE_UPDATED, null, stockSymbol, price, Double.NaN);
+        TickJournal journal = this.journal;
+        if (journal != null) journal.append(symbolId, price);
+        notifyObservers(symbolId, price);
+        fireTriggers(symbolId, stockSymbol, previousPrice, price);
+    }
+
+    // Применяет все обновления пакета и доставляет каждому наблюдателю один пакет
+    // только с его акциями. Элементы, заданные символом, дополняются идентификатором
+    public void setStockPrices(PriceBatch batch) {
+        TickJournal journal = this.journal;
+        Map<IObserver, PriceBatch> updatesByObserver = new IdentityHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            int symbolId = batch.symbolId(i) >= 0 ? batch.symbolId(i) : symbols.intern(batch.symbol(i));
+            String stockSymbol = symbols.name(symbolId);
+            batch.resolve(i, symbolId, stockSymbol);
+            double price = batch.price(i);
+            if (price < 0) {
+                events.onEvent(EventType.PRICE_REJECTED, null, stockSymbol, price, Double.NaN);
+                continue;
+            }
+            double previousPrice = Double.longBitsToDouble(stockPrices.getAndSet(symbolId, Double.doubleToRawLongBits(price)));
+            events.onEvent(EventType.PRICE_UPDATED, null, stockSymbol, price, Double.NaN);
+            if (journal != null) journal.append(symbolId, price);
+            fireTriggers(symbolId, stockSymbol, previousPrice, price);
+
+            for (IObserver observer : targets(symbolId)) {
+                PriceBatch updates = updatesByObserver.get(observer);
+                if (updates == null) {
+                    updates = new PriceBatch(Math.min(batch.size(), 16));
+                    updatesByObserver.put(observer, updates);
+                }
+                updates.add(symbolId, stockSymbol, price);
+            }
+        }
+        for (Map.Entry<IObserver, PriceBatch> entry : updatesByObserver.entrySet()) {
+            delivery.deliverBatch(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // NaN, если цена не устанавливалась
+    public double getStockPrice(String stockSymbol) {
+        int symbolId = symbols.find(stockSymbol);
+        return symbolId >= 0 ? Double.longBitsToDouble(stockPrices.get(symbolId)) : Double.NaN;
+    }
+
+    public double getStockPrice(int symbolId) {
+        symbols.checkId(symbolId);
+        return Double.longBitsToDouble(stockPrices.get(symbolId));
+    }
+
+    public void shutdown() {
+        delivery.shutdown();
+    }
+}
+
+enum OrderSide {
+    BUY, SELL
+}
+
+interface ITradeListener {
+    ITradeListener NO_OP = (symbolId, price, quantity, makerOrderId, takerOrderId) -> { };
+
+    void onTrade(int symbolId, double price, long quantity, long makerOrderId, long takerOrderId);
+}
+
+// Лимитная книга заявок одной акции. Цены переводятся в шаги цены и служат индексами массивов уровней;
+// заявки уровня образуют интрузивную FIFO-очередь на индексах пула. Один уровень никогда не содержит
+// заявки обеих сторон: пересекающая спред заявка сначала исполняется. Класс не потокобезопасен,
+// слушатель сделок не должен подавать заявки в ту же книгу
+final class OrderBook {
+    private static final int NONE = -1;
+
+    private final int symbolId;
+    private final double tickSize;
+    private final int priceLevels;
+    // Шаг цены, соответствующий уровню 0: лестница уровней окружает опорную цену
+    private final long baseTick;
+    private final ITradeListener trades;
+
+    // Голова и хвост очереди, суммарный объём и маска непустых уровней
+    private final int[] levelHead;
+    private final int[] levelTail;
+    private final long[] levelQuantity;
+    private final long[] nonEmptyLevels;
+    private int bestBid = NONE;
+    private int bestAsk;
+
+    // Пул заявок: параллельные массивы, свободные ячейки связаны через orderNext
+    private int[] orderNext;
+    private int[] orderPrev;
+    private int[] orderLevel;
+    private int[] orderGeneration;
+    private long[] orderRemaining;
+    private boolean[] orderBuy;
+    private int poolSize;
+    private int freeHead = NONE;
+    private int restingOrders;
+    private long tradeCount;
+    private double lastTradePrice = Double.NaN;
+
+    // Уровни покрывают priceLevels шагов цены с referencePrice посередине (но не ниже нуля)
+    OrderBook(int symbolId, double tickSize, double referencePrice, int priceLevels, ITradeListener trades) {
+        if (tickSize <= 0 || priceLevels <= 0 || !(referencePrice >= 0) || Double.isInfinite(referencePrice)) {
+            throw new IllegalArgumentException("Некорректные параметры книги заявок.");
+        }
+        this.symbolId = symbolId;
+        this.tickSize = tickSize;
+        this.priceLevels = priceLevels;
+        this.baseTick = Math.max(0, Math.round(referencePrice / tickSize) - priceLevels / 2);
+        this.trades = trades != null ? trades : ITradeListener.NO_OP;
+        this.levelHead = new int[priceLevels];
+        this.levelTail = new int[priceLevels];
+        this.levelQuantity = new long[priceLevels];
+        this.nonEmptyLevels = new long[(priceLevels + 63) >>> 6];
+        Arrays.fill(levelHead, NONE);
+        Arrays.fill(levelTail, NONE);
+        this.bestAsk = priceLevels;
+        growPool(1024);
+    }
+
+    OrderBook(int symbolId, double tickSize, int priceLevels, ITradeListener trades) {
+        this(symbolId, tickSize, 0, priceLevels, trades);
+    }
+
+    // Попадает ли цена в лестницу уровней книги
+    public boolean supports(double price) {
+        long level = Math.round(price / tickSize) - baseTick;
+        return price > 0 && level >= 0 && level < priceLevels;
+    }
+
+    public int getSymbolId() {
+        return symbolId;
+    }
+
+    public int getRestingOrders() {
+        return restingOrders;
+    }
+
+    public long getTradeCount() {
+        return tradeCount;
+    }
+
+    public double getLastTradePrice() {
+        return lastTradePrice;
+    }
+
+    public double getBestBid() {
+        return bestBid == NONE ? Double.NaN : priceOf(bestBid);
+    }
+
+    public double getBestAsk() {
+        return bestAsk == priceLevels ? Double.NaN : priceOf(bestAsk);
+    }
+
+    public long getDepth(double price) {
+        return levelQuantity[toLevel(price)];
+    }
+
+    // Возвращает идентификатор оставшейся в книге заявки или 0, если заявка исполнена полностью
+    public long submit(OrderSide side, double price, long quantity) {
+        return submit(side == OrderSide.BUY, toLevel(price), quantity);
+    }
+
+    long submit(boolean buy, int level, long quantity) {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Количество должно быть положительным: " + quantity);
+        }
+        int order = allocate();
+        long orderId = orderId(order);
+        long remaining = buy ? matchAsks(level, quantity, orderId) : matchBids(level, quantity, orderId);
+        if (remaining == 0) {
+            release(order);
+            return 0;
+        }
+        orderRemaining[order] = remaining;
+        orderBuy[order] = buy;
+        enqueue(order, level);
+        if (buy) {
+            if (level > bestBid) bestBid = level;
+        } else if (level < bestAsk) {
+            bestAsk = level;
+        }
+        return orderId;
+    }
+
+    public boolean cancel(long orderId) {
+        int order = (int) orderId;
+        if (order < 0 || order >= poolSize || orderGeneration[order] != (int) (orderId >>> 32) || orderRemaining[order] == 0) {
+            return false;
+        }
+        int level = orderLevel[order];
+        levelQuantity[level] -= orderRemaining[order];
+        unlink(order, level);
+        if (levelHead[level] == NONE) levelEmptied(level, orderBuy[order]);
+        release(order);
+        return true;
+    }
+
+    private long matchAsks(int limit, long quantity, long takerOrderId) {
+        while (quantity > 0 && bestAsk <= limit) {
+            quantity = fillLevel(bestAsk, quantity, takerOrderId);
+            if (levelHead[bestAsk] == NONE) levelEmptied(bestAsk, false);
+        }
+        return quantity;
+    }
+
+    private long matchBids(int limit, long quantity, long takerOrderId) {
+        while (quantity > 0 && bestBid != NONE && bestBid >= limit) {
+            quantity = fillLevel(bestBid, quantity, takerOrderId);
+            if (levelHead[bestBid] == NONE) levelEmptied(bestBid, true);
+        }
+        return quantity;
+    }
+
+    // Исполняет заявки уровня в порядке поступления, каждая сделка сообщается слушателю
+    private long fillLevel(int level, long quantity, long takerOrderId) {
+        double price = priceOf(level);
+        while (quantity > 0 && levelHead[level] != NONE) {
+            int maker = levelHead[level];
+            long filled = Math.min(quantity, orderRemaining[maker]);
+            quantity -= filled;
+            orderRemaining[maker] -= filled;
+            levelQuantity[level] -= filled;
+            long makerOrderId = orderId(maker);
+            if (orderRemaining[maker] == 0) {
+                unlink(maker, level);
+                release(maker);
+            }
+            tradeCount++;
+            lastTradePrice = price;
+            trades.onTrade(symbolId, price, filled, makerOrderId, takerOrderId);
+        }
+        return quantity;
+    }
+
+    private void levelEmptied(int level, boolean buy) {
+        nonEmptyLevels[level >>> 6] &= ~(1L << level);
+        if (buy) {
+            if (level == bestBid) bestBid = previousNonEmpty(level);
+        } else if (level == bestAsk) {
+            bestAsk = nextNonEmpty(level);
+        }
+    }
+
+    private int nextNonEmpty(int level) {
+        int word = level >>> 6;
+        long bits = nonEmptyLevels[word] & (-1L << level);
+        while (bits == 0) {
+            if (++word == nonEmptyLevels.length) return priceLevels;
+            bits = nonEmptyLevels[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    private int previousNonEmpty(int level) {
+        int word = level >>> 6;
+        long bits = nonEmptyLevels[word] & (-1L >>> (63 - (level & 63)));
+        while (bits == 0) {
+            if (--word < 0) return NONE;
+            bits = nonEmptyLevels[word];
+        }
+        return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+    }
+
+    private void enqueue(int order, int level) {
+        orderLevel[order] = level;
+        orderNext[order] = NONE;
+        orderPrev[order] = levelTail[level];
+        if (levelTail[level] == NONE) {
+            levelHead[level] = order;
+            nonEmptyLevels[level >>> 6] |= 1L << level;
+        } else {
+            orderNext[levelTail[level]] = order;
+        }
+        levelTail[level] = order;
+        levelQuantity[level] += orderRemaining[order];
+        restingOrders++;
+    }
+
+    private void unlink(int order, int level) {
+        int prev = orderPrev[order];
+        int next = orderNext[order];
+        if (prev == NONE) levelHead[level] = next;
+        else orderNext[prev] = next;
+        if (next == NONE) levelTail[level] = prev;
+        else orderPrev[next] = prev;
+        restingOrders--;
+    }
+
+    private int allocate() {
+        if (freeHead == NONE) growPool(orderNext.length * 2);
+        int order = freeHead;
+        freeHead = orderNext[order];
+        return order;
+    }
+
+    // Смена поколения делает прежний идентификатор недействительным для cancel
+    private void release(int order) {
+        orderRemaining[order] = 0;
+        orderGeneration[order]++;
+        orderNext[order] = freeHead;
+        freeHead = order;
+    }
+
+    private void growPool(int capacity) {
+        int from = poolSize;
+        orderNext = orderNext == null ? new int[capacity] : Arrays.copyOf(orderNext, capacity);
+        orderPrev = orderPrev == null ? new int[capacity] : Arrays.copyOf(orderPrev, capacity);
+        orderLevel = orderLevel == null ? new int[capacity] : Arrays.copyOf(orderLevel, capacity);
+        orderGeneration = orderGeneration == null ? new int[capacity] : Arrays.copyOf(orderGeneration, capacity);
+        orderRemaining = orderRemaining == null ? new long[capacity] : Arrays.copyOf(orderRemaining, capacity);
+        orderBuy = orderBuy == null ? new boolean[capacity] : Arrays.copyOf(orderBuy, capacity);
+        for (int i = capacity - 1; i >= from; i--) {
+            orderGeneration[i] = 1;
+            orderNext[i] = freeHead;
+            freeHead = i;
+        }
+        poolSize = capacity;
+    }
+
+    private long orderId(int order) {
+        return ((long) orderGeneration[order] << 32) | order;
+    }
+
+    private int toLevel(double price) {
+        if (!supports(price)) throw new IllegalArgumentException("Цена вне диапазона книги заявок: " + price);
+        return (int) (Math.round(price / tickSize) - baseTick);
+    }
+
+    private double priceOf(int level) {
+        return (baseTick + level) * tickSize;
     }
 }
 
-class TrainStrategy implements ICostCalculationStrategy {
-    public double calculateCost(double distance, String serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
-        double baseRate = 0.12;
-        double classMultiplier = serviceClass.equalsIgnoreCase("бизнес") ? 1.8 : 1.0;
-        double cost = distance * baseRate * classMultiplier * passengers;
-        if (hasLuggage) cost += 10 * passengers;
-        if (isChildOrSenior) cost *= 0.75;
-        return cost;
+// Книги заявок по всем акциям биржи. Цена последней сделки по заявке передаётся в setStockPrice
+// отдельным потоком публикации: заявка из update наблюдателя не ждёт места в его же почтовом ящике
+final class MatchingEngine {
+    static final double DEFAULT_TICK_SIZE = 0.01;
+    // 2^15 уровней по 0.01 — около ±163 от опорной цены, 512 КБ на книгу
+    static final int DEFAULT_PRICE_LEVELS = 1 << 15;
+
+    private final StockExchange exchange;
+    private final double tickSize;
+    private final int priceLevels;
+    private final ITradeListener trades;
+    private final AtomicReferenceArray<OrderBook> books;
+    // Неограниченная очередь с одним потоком: сохраняет порядок сделок и никогда не блокирует submit
+    private final ExecutorService tradePublisher;
+
+    public MatchingEngine(StockExchange exchange, double tickSize, int priceLevels, ITradeListener trades) {
+        this.exchange = exchange;
+        this.tickSize = tickSize;
+        this.priceLevels = priceLevels;
+        this.trades = trades;
+        this.books = new AtomicReferenceArray<>(exchange.getSymbols().capacity());
+        this.tradePublisher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "trade-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public MatchingEngine(StockExchange exchange) {
+        this(exchange, DEFAULT_TICK_SIZE, DEFAULT_PRICE_LEVELS, ITradeListener.NO_OP);
+    }
+
+    // Возвращает идентификатор оставшейся в книге заявки или 0, если заявка исполнена полностью
+    public long submit(String stockSymbol, OrderSide side, double price, long quantity) {
+        if (!isRunning()) throw new IllegalStateException("Торговый движок остановлен.");
+        OrderBook book = book(exchange.symbolId(stockSymbol), price);
+        long orderId;
+        double tradePrice = Double.NaN;
+        synchronized (book) {
+            long tradesBefore = book.getTradeCount();
+            orderId = book.submit(side, price, quantity);
+            if (book.getTradeCount() != tradesBefore) tradePrice = book.getLastTradePrice();
+        }
+        if (!Double.isNaN(tradePrice)) publishTrade(book.getSymbolId(), tradePrice);
+        return orderId;
+    }
+
+    private void publishTrade(int symbolId, double price) {
+        try {
+            tradePublisher.execute(() -> exchange.setStockPrice(symbolId, price));
+        } catch (RejectedExecutionException e) {
+            throw new IllegalStateException("Торговый движок остановлен.", e);
+        }
+    }
+
+    public boolean isRunning() {
+        return !tradePublisher.isShutdown();
+    }
+
+    // Публикует уже принятые сделки и перестаёт принимать заявки
+    public void shutdown() {
+        tradePublisher.shutdown();
+        try {
+            tradePublisher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean cancel(String stockSymbol, long orderId) {
+        int symbolId = exchange.getSymbols().find(stockSymbol);
+        OrderBook book = symbolId < 0 ? null : books.get(symbolId);
+        if (book == null) return false;
+        synchronized (book) {
+            return book.cancel(orderId);
+        }
+    }
+
+    // Можно ли торговать акцией по этой цене; создаёт книгу, если её ещё нет
+    public boolean supports(String stockSymbol, double price) {
+        return book(exchange.symbolId(stockSymbol), price).supports(price);
+    }
+
+    // null, если по акции ещё не было заявок
+    public OrderBook getBook(int symbolId) {
+        return books.get(symbolId);
+    }
+
+    // Книга создаётся при первом обращении вокруг текущей цены акции, а без неё — вокруг цены заявки
+    private OrderBook book(int symbolId, double price) {
+        OrderBook book = books.get(symbolId);
+        if (book == null) {
+            double current = exchange.getStockPrice(symbolId);
+            double reference = !Double.isNaN(current) ? current : price > 0 && !Double.isInfinite(price) ? price : 0;
+            OrderBook created = new OrderBook(symbolId, tickSize, reference, priceLevels, trades);
+            book = books.compareAndSet(symbolId, null, created) ? created : books.get(symbolId);
+        }
+        return book;
     }
 }
 
-class BusStrategy implements ICostCalculationStrategy {
-    public double calculateCost(double distance, String serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
-        double baseRate = 0.08;
-        double classMultiplier = serviceClass.equalsIgnoreCase("бизнес") ? 1.5 : 1.0;
-        double cost = distance * baseRate * classMultiplier * passengers;
-        if (hasLuggage) cost += 5 * passengers;
-        if (isChildOrSenior) cost *= 0.8;
-        return cost;
+// Пропускная способность книги заявок на одном потоке: поток лимитных заявок вокруг средней цены
+// с отменой части оставшихся. Запуск после сборки (см. PricingBenchmark):
+// java -Dfile.encoding=UTF-8 -cp out OrderBookBenchmark [заявок]
+final class OrderBookBenchmark {
+    public static void main(String[] args) {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        for (int round = 1; round <= 5; round++) {
+            run(round, orders);
+        }
+    }
+
+    private static void run(int round, int orders) {
+        long[] tradedQuantity = new long[1];
+        OrderBook book = new OrderBook(0, 0.01, 1 << 16, (symbolId, price, quantity, maker, taker) -> tradedQuantity[0] += quantity);
+        long[] recent = new long[1024];
+        int mid = 30_000;
+        long seed = 42;
+        long start = System.nanoTime();
+        for (int i = 0; i < orders; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            int random = (int) (seed >>> 33);
+            boolean buy = (random & 1) == 0;
+            int level = mid + ((random >>> 1) & 63) - 32;
+            long id = book.submit(buy, level, 1 + ((random >>> 7) & 15));
+            int slot = (random >>> 11) & (recent.length - 1);
+            if ((random & 0x30000) == 0) book.cancel(recent[slot]);
+            recent[slot] = id;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Раунд %d: %.2f млн заявок/с, исполнено %d шт., в книге %d заявок%n", round,
+                orders * 1e3 / elapsed, tradedQuantity[0], book.getRestingOrders());
     }
 }
 
-class TravelBookingContext {
-    private ICostCalculationStrategy strategy;
+interface ITickRecordHandler {
+    void onTick(long timestamp, long sequence, int symbolId, double price);
+}
 
-    public void setStrategy(ICostCalculationStrategy strategy) {
-        this.strategy = strategy;
+// Журнал принятых цен: записи фиксированного размера в отображённых в память сегментах,
+// запись тика обходится без системных вызовов. В записях хранятся идентификаторы из таблицы акций
+// биржи, имена дописываются в symbols.txt (строка = идентификатор). При повторном открытии каталога
+// таблица биржи заполняется именами из журнала, чтобы идентификаторы совпали
+final class TickJournal implements Closeable {
+    // timestamp (нс от эпохи), sequence, price, symbolId, резерв
+    static final int RECORD_SIZE = 32;
+    static final int DEFAULT_RECORDS_PER_SEGMENT = 1 << 20;
+    private static final String SEGMENT_PREFIX = "ticks-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String SYMBOLS_FILE = "symbols.txt";
+
+    private final Path directory;
+    private final int recordsPerSegment;
+    private final SymbolTable symbols;
+    private final Writer symbolsOut;
+    // Имена акций с идентификаторами меньше этого уже есть в symbols.txt
+    private int persistedSymbols;
+    private final long clockOffset = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private int recordIndex;
+    private long sequence;
+
+    public TickJournal(Path directory, int recordsPerSegment, SymbolTable symbols) throws IOException {
+        if (recordsPerSegment <= 0 || recordsPerSegment > Integer.MAX_VALUE / RECORD_SIZE) {
+            throw new IllegalArgumentException("Некорректный размер сегмента журнала: " + recordsPerSegment);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.recordsPerSegment = recordsPerSegment;
+        this.symbols = symbols;
+        List<String> recorded = readSymbols(directory);
+        for (int i = 0; i < recorded.size(); i++) {
+            if (symbols.intern(recorded.get(i)) != i) {
+                throw new IllegalStateException("Таблица акций не совпадает с журналом: " + recorded.get(i));
+            }
+        }
+        this.persistedSymbols = recorded.size();
+        this.symbolsOut = Files.newBufferedWriter(directory.resolve(SYMBOLS_FILE), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        resume();
     }
 
-    public double calculateTotalCost(double distance, String serviceClass, int passengers, boolean hasLuggage, boolean isChildOrSenior) {
-        if (strategy == null) throw new IllegalStateException("Стратегия не установлена.");
-        if (distance <= 0 || passengers <= 0) throw new IllegalArgumentException("Некорректные входные данные.");
-        return strategy.calculateCost(distance, serviceClass, passengers, hasLuggage, isChildOrSenior);
+    public TickJournal(Path directory, SymbolTable symbols) throws IOException {
+        this(directory, DEFAULT_RECORDS_PER_SEGMENT, symbols);
     }
-}
 
-interface IObserver {
-    void update(String stockSymbol, double newPrice);
-    Set<String> getSubscribedStocks();
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    // Возвращает номер записи; номера начинаются с 1 и продолжаются после перезапуска
+    public synchronized long append(int symbolId, double price) {
+        if (segment == null) throw new IllegalStateException("Журнал закрыт.");
+        try {
+            if (symbolId >= persistedSymbols) persistSymbols(symbolId);
+            if (recordIndex == recordsPerSegment) openSegment(segmentIndex + 1, 0);
+            int offset = recordIndex * RECORD_SIZE;
+            segment.putLong(offset, clockOffset + System.nanoTime());
+            segment.putDouble(offset + 16, price);
+            segment.putInt(offset + 24, symbolId);
+            // Номер пишется последним: нулевой номер отмечает конец записанных данных
+            segment.putLong(offset + 8, ++sequence);
+            recordIndex++;
+            return sequence;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка записи журнала тиков.", e);
+        }
+    }
+
+    public synchronized void flush() {
+        if (segment != null) segment.force();
+    }
+
+    public synchronized void close() throws IOException {
+        if (segment == null) return;
+        segment.force();
+        segment = null;
+        symbolsOut.close();
+    }
+
+    // Новые имена дописываются до первой записи с ними, чтобы журнал читался и после сбоя
+    private void persistSymbols(int symbolId) throws IOException {
+        for (; persistedSymbols <= symbolId; persistedSymbols++) {
+            symbolsOut.write(symbols.name(persistedSymbols));
+            symbolsOut.write('\n');
+        }
+        symbolsOut.flush();
+    }
+
+    // Продолжает последний сегмент с первой пустой записи
+    private void resume() throws IOException {
+        List<Path> segments = segments(directory);
+        if (segments.isEmpty()) {
+            openSegment(0, 0);
+            return;
+        }
+        Path last = segments.get(segments.size() - 1);
+        int index = segmentIndex(last);
+        openSegment(index, 0);
+        while (recordIndex < recordsPerSegment) {
+            long recorded = segment.getLong(recordIndex * RECORD_SIZE + 8);
+            if (recorded == 0) break;
+            sequence = recorded;
+            recordIndex++;
+        }
+    }
+
+    private void openSegment(int index, int startRecord) throws IOException {
+        if (segment != null) segment.force();
+        Path file = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE);
+        }
+        segmentIndex = index;
+        recordIndex = startRecord;
+    }
+
+    // Имена акций по идентификаторам журнала
+    static List<String> readSymbols(Path directory) throws IOException {
+        Path file = directory.resolve(SYMBOLS_FILE);
+        if (!Files.exists(file)) return new ArrayList<>();
+        return new ArrayList<>(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort(Comparator.comparingInt(TickJournal::segmentIndex));
+        return segments;
+    }
+
+    private static int segmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Читает записи всех сегментов по порядку; возвращает число прочитанных записей
+    static long replay(Path directory, ITickRecordHandler handler) throws IOException {
+        long records = 0;
+        for (Path path : segments(directory)) {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int limit = buffer.capacity() - RECORD_SIZE;
+            for (int offset = 0; offset <= limit; offset += RECORD_SIZE) {
+                long recorded = buffer.getLong(offset + 8);
+                if (recorded == 0) break;
+                handler.onTick(buffer.getLong(offset), recorded, buffer.getInt(offset + 24), buffer.getDouble(offset + 16));
+                records++;
+            }
+        }
+        return records;
+    }
 }
 
-interface ISubject {
-    void registerObserver(IObserver observer, String stockSymbol);
-    void removeObserver(IObserver observer, String stockSymbol);
-    void notifyObservers(String stockSymbol, double newPrice);
-    void setStockPrice(String stockSymbol, double price);
+// Распределение задержек одного наблюдателя: корзины по степеням двойки наносекунд
+final class LatencyStats {
+    private final long[] buckets = new long[64];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    synchronized void record(long nanos, int updates) {
+        if (nanos < 0) nanos = 0;
+        buckets[nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos)] += updates;
+        count += updates;
+        totalNanos += nanos * updates;
+        if (nanos > maxNanos) maxNanos = nanos;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMeanMicros() {
+        return count == 0 ? 0 : totalNanos / 1e3 / count;
+    }
+
+    public synchronized double getMaxMicros() {
+        return maxNanos / 1e3;
+    }
+
+    // Верхняя граница корзины, в которую попадает заданная доля обновлений
+    public synchronized double getPercentileMicros(double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) return Math.min((double) (2L << i), maxNanos) / 1e3;
+        }
+        return 0;
+    }
 }
 
-class StockExchange implements ISubject {
-    private Map<String, Double> stockPrices = new HashMap<>();
-    private Map<String, Set<IObserver>> observersByStock = new HashMap<>();
-    private ExecutorService executor = Executors.newCachedThreadPool();
+// Обёртка доставки, измеряющая задержку от передачи тика доставке до вызова наблюдателя.
+// Моменты передачи хранятся в очереди каждого наблюдателя и снимаются в порядке доставки,
+// поэтому отстающий наблюдатель получает задержку именно того тика, который обрабатывает.
+// Требует доставки без слияния обновлений с сохранением порядка для наблюдателя
+final class LatencyRecordingDelivery implements ITickDelivery {
+    private final ITickDelivery delegate;
+    private final ConcurrentMap<IObserver, RecordingObserver> observers = new ConcurrentHashMap<>();
+    private final LongAdder handedOff = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
 
-    public void registerObserver(IObserver observer, String stockSymbol) {
-        observersByStock.computeIfAbsent(stockSymbol, k -> new HashSet<>()).add(observer);
-        System.out.println("Наблюдатель подписан на акцию: " + stockSymbol);
+    public LatencyRecordingDelivery(ITickDelivery delegate) {
+        this.delegate = delegate;
     }
 
-    public void removeObserver(IObserver observer, String stockSymbol) {
-        Set<IObserver> observers = observersByStock.get(stockSymbol);
-        if (observers != null) {
-            observers.remove(observer);
-            System.out.println("Наблюдатель отписан от акции: " + stockSymbol);
+    public void deliver(IObserver observer, int symbolId, String stockSymbol, double newPrice) {
+        RecordingObserver recording = recording(observer);
+        handedOff.increment();
+        recording.handOff(System.nanoTime(), 1);
+        delegate.deliver(recording, symbolId, stockSymbol, newPrice);
+    }
+
+    public void deliverBatch(IObserver observer, PriceBatch updates) {
+        RecordingObserver recording = recording(observer);
+        handedOff.add(updates.size());
+        recording.handOff(System.nanoTime(), updates.size());
+        delegate.deliverBatch(recording, updates);
+    }
+
+    // Статистика наблюдателя сохраняется для отчёта
+    public void release(IObserver observer) {
+        RecordingObserver recording = observers.get(observer);
+        if (recording != null) delegate.release(recording);
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    // Ждёт, пока наблюдатели получат все переданные обновления. Не годится при слиянии обновлений
+    public boolean awaitDelivered(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (delivered.sum() < handedOff.sum()) {
+            if (System.nanoTime() > deadline) return false;
+            LockSupport.parkNanos(1_000_000);
         }
+        return true;
     }
 
-    public void notifyObservers(String stockSymbol, double newPrice) {
-        Set<IObserver> observers = observersByStock.get(stockSymbol);
-        if (observers != null) {
-            for (IObserver observer : observers) {
-                if (observer.getSubscribedStocks().contains(stockSymbol)) {
-                    executor.submit(() -> observer.update(stockSymbol, newPrice));
+    public Map<IObserver, LatencyStats> getLatencies() {
+        Map<IObserver, LatencyStats> latencies = new IdentityHashMap<>();
+        for (Map.Entry<IObserver, RecordingObserver> entry : observers.entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().stats);
+        }
+        return latencies;
+    }
+
+    private RecordingObserver recording(IObserver observer) {
+        RecordingObserver recording = observers.get(observer);
+        return recording != null ? recording : observers.computeIfAbsent(observer, RecordingObserver::new);
+    }
+
+    private final class RecordingObserver implements IObserver {
+        final IObserver observer;
+        final LatencyStats stats = new LatencyStats();
+        // Кольцо моментов передачи ещё не доставленных обновлений, растёт при отставании
+        private long[] handedOffAt = new long[64];
+        private int head;
+        private int size;
+
+        RecordingObserver(IObserver observer) {
+            this.observer = observer;
+        }
+
+        synchronized void handOff(long nanos, int updates) {
+            for (int i = 0; i < updates; i++) {
+                if (size == handedOffAt.length) {
+                    long[] grown = new long[handedOffAt.length * 2];
+                    for (int k = 0; k < size; k++) {
+                        grown[k] = handedOffAt[(head + k) & (handedOffAt.length - 1)];
+                    }
+                    handedOffAt = grown;
+                    head = 0;
                 }
+                handedOffAt[(head + size) & (handedOffAt.length - 1)] = nanos;
+                size++;
+            }
+        }
+
+        // Записывает задержку для очередных updates обновлений
+        synchronized void record(int updates) {
+            long now = System.nanoTime();
+            for (int i = 0; i < updates && size > 0; i++) {
+                stats.record(now - handedOffAt[head], 1);
+                head = (head + 1) & (handedOffAt.length - 1);
+                size--;
             }
         }
+
+        public void update(String stockSymbol, double newPrice) {
+            record(1);
+            observer.update(stockSymbol, newPrice);
+            delivered.increment();
+        }
+
+        public void update(int symbolId, String stockSymbol, double newPrice) {
+            record(1);
+            observer.update(symbolId, stockSymbol, newPrice);
+            delivered.increment();
+        }
+
+        public void updateAll(PriceBatch updates) {
+            record(updates.size());
+            observer.updateAll(updates);
+            delivered.add(updates.size());
+        }
     }
+}
 
-    public void setStockPrice(String stockSymbol, double price) {
-        if (price < 0) {
-            System.out.println("Ошибка: цена акции не может быть отрицательной.");
+enum ReplayPacing {
+    // Интервалы между тиками как при записи
+    ORIGINAL,
+    AS_FAST_AS_POSSIBLE
+}
+
+// Воспроизводит журнал тиков в порядке номеров записей через setStockPrice биржи.
+// Запуск после сборки (см. PricingBenchmark): java -Dfile.encoding=UTF-8 -cp out TickReplayer <каталог журнала> [original|fast]
+final class TickReplayer {
+    private final Path journalDirectory;
+    private final StockExchange exchange;
+
+    public TickReplayer(Path journalDirectory, StockExchange exchange) {
+        this.journalDirectory = journalDirectory;
+        this.exchange = exchange;
+    }
+
+    // Возвращает достигнутую скорость, тиков в секунду
+    public double replay(ReplayPacing pacing) throws IOException {
+        List<String> names = TickJournal.readSymbols(journalDirectory);
+        int[] exchangeIds = new int[names.size()];
+        for (int i = 0; i < exchangeIds.length; i++) {
+            exchangeIds[i] = exchange.symbolId(names.get(i));
+        }
+
+        long start = System.nanoTime();
+        long[] firstTimestamp = {Long.MIN_VALUE};
+        long ticks = TickJournal.replay(journalDirectory, (timestamp, sequence, symbolId, price) -> {
+            if (pacing == ReplayPacing.ORIGINAL) {
+                if (firstTimestamp[0] == Long.MIN_VALUE) firstTimestamp[0] = timestamp;
+                long due = start + (timestamp - firstTimestamp[0]);
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            exchange.setStockPrice(exchangeIds[symbolId], price);
+        });
+        long elapsed = System.nanoTime() - start;
+        return elapsed == 0 ? 0 : ticks * 1e9 / elapsed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Использование: TickReplayer <каталог журнала> [original|fast]");
             return;
         }
-        stockPrices.put(stockSymbol, price);
-        System.out.println("Цена акции " + stockSymbol + " обновлена: " + price);
-        notifyObservers(stockSymbol, price);
+        Path directory = Paths.get(args[0]);
+        ReplayPacing pacing = args.length > 1 && args[1].equals("original") ? ReplayPacing.ORIGINAL : ReplayPacing.AS_FAST_AS_POSSIBLE;
+
+        LatencyRecordingDelivery delivery = new LatencyRecordingDelivery(new MailboxDelivery());
+        StockExchange exchange = new StockExchange(delivery);
+        exchange.setEventSink(IEventSink.NO_OP);
+
+        // Трейдер получает все тики, робот срабатывает на отклонениях от первой записанной цены
+        TraderObserver trader = new TraderObserver("Трейдер", IEventSink.NO_OP);
+        TradingBotObserver bot = new TradingBotObserver("Робот", IEventSink.NO_OP);
+        exchange.subscribePattern(trader, "*");
+        List<String> names = TickJournal.readSymbols(directory);
+        double[] firstPrices = new double[names.size()];
+        Arrays.fill(firstPrices, Double.NaN);
+        TickJournal.replay(directory, (timestamp, sequence, symbolId, price) -> {
+            if (Double.isNaN(firstPrices[symbolId])) firstPrices[symbolId] = price;
+        });
+        for (int i = 0; i < firstPrices.length; i++) {
+            if (!Double.isNaN(firstPrices[i])) bot.setThreshold(names.get(i), firstPrices[i] * 1.01);
+        }
+        bot.registerTriggers(exchange);
+
+        double ticksPerSecond = new TickReplayer(directory, exchange).replay(pacing);
+        boolean delivered = delivery.awaitDelivered(60_000);
+        exchange.shutdown();
+
+        System.out.printf("Воспроизведение (%s): %.0f тиков/с%s%n", pacing, ticksPerSecond, delivered ? "" : " (доставка не завершена)");
+        Map<IObserver, String> labels = new IdentityHashMap<>();
+        labels.put(trader, "Трейдер");
+        labels.put(bot, "Робот");
+        for (Map.Entry<IObserver, LatencyStats> entry : delivery.getLatencies().entrySet()) {
+            LatencyStats stats = entry.getValue();
+            System.out.printf("%-10s обновлений %d, задержка: средняя %.1f мкс, p99 %.1f мкс, макс. %.1f мкс%n",
+                    labels.getOrDefault(entry.getKey(), entry.getKey().toString()), stats.getCount(), stats.getMeanMicros(),
+                    stats.getPercentileMicros(0.99), stats.getMaxMicros());
+        }
     }
+}
 
-    public void shutdown() {
-        executor.shutdown();
+enum CandleInterval {
+    SECOND_1(1_000),
+    MINUTE_1(60_000),
+    MINUTE_5(300_000);
+
+    private final long millis;
+
+    CandleInterval(long millis) {
+        this.millis = millis;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    long windowStart(long timestampMillis) {
+        return timestampMillis - Math.floorMod(timestampMillis, millis);
     }
 }
 
-class TraderObserver implements IObserver {
-    private String name;
-    private Set<String> subscribedStocks = new HashSet<>();
+interface ICandleObserver {
+    void onCandle(CandleInterval interval, int symbolId, String stockSymbol, long openTimeMillis,
+                  double open, double high, double low, double close, long count);
+}
 
-    public TraderObserver(String name) {
-        this.name = name;
+// Свечи OHLC по всем акциям и интервалам в плоских примитивных массивах: ячейка = интервал * ёмкость + акция.
+// Бар закрывается первым тиком следующего окна или вызовом closeExpired для акций без тиков.
+// Тики из окон раньше текущего бара отбрасываются. При подписке на биржу время тика берётся из clock
+// в момент доставки, а не принятия цены: отстающая доставка может отнести тик к следующему окну.
+// Для точной разбивки по окнам используйте onTick с временем из журнала (TickJournal)
+final class CandleAggregator implements IObserver {
+    private static final CandleInterval[] INTERVALS = CandleInterval.values();
+    private static final ICandleObserver[] NO_OBSERVERS = new ICandleObserver[0];
+
+    private final int symbolCapacity;
+    private final LongSupplier clock;
+    private final String[] symbolNames;
+    private final long[] windowStart;
+    // Начало последнего выпущенного окна ячейки: бар с тем же временем открытия больше не открывается
+    private final long[] emittedWindow;
+    private final double[] open;
+    private final double[] high;
+    private final double[] low;
+    private final double[] close;
+    private final long[] count;
+    private volatile ICandleObserver[] observers = NO_OBSERVERS;
+    private volatile StockExchange exchange;
+
+    public CandleAggregator(int symbolCapacity, LongSupplier clock) {
+        if (symbolCapacity <= 0) throw new IllegalArgumentException("Некорректная ёмкость таблицы акций.");
+        this.symbolCapacity = symbolCapacity;
+        this.clock = clock;
+        int cells = symbolCapacity * INTERVALS.length;
+        this.symbolNames = new String[symbolCapacity];
+        this.windowStart = new long[cells];
+        this.emittedWindow = new long[cells];
+        Arrays.fill(emittedWindow, Long.MIN_VALUE);
+        this.open = new double[cells];
+        this.high = new double[cells];
+        this.low = new double[cells];
+        this.close = new double[cells];
+        this.count = new long[cells];
+    }
+
+    public CandleAggregator() {
+        this(StockExchange.DEFAULT_SYMBOL_CAPACITY, System::currentTimeMillis);
+    }
+
+    // Подписка на все акции биржи
+    public void subscribeTo(StockExchange exchange) {
+        this.exchange = exchange;
+        exchange.subscribePattern(this, "*");
+    }
+
+    public synchronized void addCandleObserver(ICandleObserver observer) {
+        ICandleObserver[] current = observers;
+        ICandleObserver[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = observer;
+        observers = updated;
+    }
+
+    public synchronized void removeCandleObserver(ICandleObserver observer) {
+        ICandleObserver[] current = observers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == observer) {
+                ICandleObserver[] updated = new ICandleObserver[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                observers = updated;
+                return;
+            }
+        }
     }
 
     public void update(String stockSymbol, double newPrice) {
-        System.out.println("[Трейдер " + name + "] Акция " + stockSymbol + " теперь стоит: " + newPrice);
+        StockExchange exchange = this.exchange;
+        if (exchange != null) update(exchange.symbolId(stockSymbol), stockSymbol, newPrice);
+    }
+
+    public void update(int symbolId, String stockSymbol, double newPrice) {
+        onTick(symbolId, stockSymbol, newPrice, clock.getAsLong());
+    }
+
+    public synchronized void onTick(int symbolId, String stockSymbol, double price, long timestampMillis) {
+        if (symbolId < 0 || symbolId >= symbolCapacity) {
+            throw new IllegalArgumentException("Неизвестный идентификатор акции: " + symbolId);
+        }
+        symbolNames[symbolId] = stockSymbol;
+        for (CandleInterval interval : INTERVALS) {
+            int cell = interval.ordinal() * symbolCapacity + symbolId;
+            long start = interval.windowStart(timestampMillis);
+            // Тик из окна раньше текущего бара или уже выпущенного отбрасывается
+            if (count[cell] > 0 && start < windowStart[cell]) continue;
+            if (count[cell] > 0 && start > windowStart[cell]) emit(interval, symbolId, cell);
+            if (count[cell] == 0) {
+                if (start <= emittedWindow[cell]) continue;
+                windowStart[cell] = start;
+                open[cell] = price;
+                high[cell] = price;
+                low[cell] = price;
+            } else {
+                if (price > high[cell]) high[cell] = price;
+                if (price < low[cell]) low[cell] = price;
+            }
+            close[cell] = price;
+            count[cell]++;
+        }
+    }
+
+    // Закрывает бары, окно которых истекло к nowMillis, даже если по акции больше не было тиков
+    public synchronized void closeExpired(long nowMillis) {
+        for (CandleInterval interval : INTERVALS) {
+            long current = interval.windowStart(nowMillis);
+            int base = interval.ordinal() * symbolCapacity;
+            for (int symbolId = 0; symbolId < symbolCapacity; symbolId++) {
+                int cell = base + symbolId;
+                if (count[cell] > 0 && windowStart[cell] < current) emit(interval, symbolId, cell);
+            }
+        }
+    }
+
+    public void closeExpired() {
+        closeExpired(clock.getAsLong());
+    }
+
+    private void emit(CandleInterval interval, int symbolId, int cell) {
+        emittedWindow[cell] = windowStart[cell];
+        for (ICandleObserver observer : observers) {
+            observer.onCandle(interval, symbolId, symbolNames[symbolId], windowStart[cell],
+                    open[cell], high[cell], low[cell], close[cell], count[cell]);
+        }
+        count[cell] = 0;
     }
+}
+
+class TraderObserver implements IObserver {
+    private String name;
+    private final IEventSink events;
 
-    public Set<String> getSubscribedStocks() {
-        return subscribedStocks;
+    public TraderObserver(String name, IEventSink events) {
+        this.name = name;
+        this.events = events;
+    }
+
+    public TraderObserver(String name) {
+        this(name, ConsoleEventSink.INSTANCE);
     }
 
-    public void subscribeTo(String stock) {
-        subscribedStocks.add(stock);
+    public void update(String stockSymbol, double newPrice) {
+        events.onEvent(EventType.TRADER_NOTIFIED, name, stockSymbol, newPrice, Double.NaN);
     }
 }
 
 class TradingBotObserver implements IObserver {
+    private static final double SELL_RATIO = 0.9;
+
     private String name;
-    private Set<String> subscribedStocks = new HashSet<>();
-    private Map<String, Double> thresholds = new HashMap<>();
+    private final Map<String, Double> thresholds = new ConcurrentHashMap<>();
+    private final IEventSink events;
+    private volatile MatchingEngine engine;
+    private volatile long orderQuantity;
+    // Биржа, в индексе которой зарегистрированы пороги; null — бот ещё не подключён
+    private StockExchange exchange;
 
-    public TradingBotObserver(String name) {
+    public TradingBotObserver(String name, IEventSink events) {
         this.name = name;
+        this.events = events;
+    }
+
+    public TradingBotObserver(String name) {
+        this(name, ConsoleEventSink.INSTANCE);
     }
 
-    public void setThreshold(String stock, double threshold) {
+    // Порог сразу попадает в индекс подключённой биржи
+    public synchronized void setThreshold(String stock, double threshold) {
+        checkSupported(engine, stock, threshold);
         thresholds.put(stock, threshold);
+        if (exchange != null) exchange.registerTrigger(this, stock, threshold, threshold * SELL_RATIO);
+    }
+
+    // Решения о покупке и продаже становятся лимитными заявками по текущей цене.
+    // Пороги вне диапазона книги заявок отклоняются сразу, а не при первой сделке
+    public synchronized void attachEngine(MatchingEngine engine, long orderQuantity) {
+        for (Map.Entry<String, Double> entry : thresholds.entrySet()) {
+            checkSupported(engine, entry.getKey(), entry.getValue());
+        }
+        this.orderQuantity = orderQuantity;
+        this.engine = engine;
+    }
+
+    private static void checkSupported(MatchingEngine engine, String stock, double threshold) {
+        if (engine != null && !(engine.supports(stock, threshold) && engine.supports(stock, threshold * SELL_RATIO))) {
+            throw new IllegalArgumentException("Порог " + threshold + " по акции " + stock + " вне диапазона книги заявок.");
+        }
+    }
+
+    // Передаёт пороги бирже: update будет вызываться только при пересечении уровня покупки или продажи.
+    // Пороги, заданные после подключения, регистрируются в setThreshold
+    public synchronized void registerTriggers(StockExchange exchange) {
+        this.exchange = exchange;
+        for (Map.Entry<String, Double> entry : thresholds.entrySet()) {
+            double threshold = entry.getValue();
+            exchange.registerTrigger(this, entry.getKey(), threshold, threshold * SELL_RATIO);
+        }
     }
 
     public void update(String stockSymbol, double newPrice) {
         Double threshold = thresholds.get(stockSymbol);
         if (threshold != null) {
             if (newPrice > threshold) {
-                System.out.println("[Робот " + name + "] ПОКУПКА акции " + stockSymbol + " по цене " + newPrice + " (порог: " + threshold + ")");
-            } else if (newPrice < threshold * 0.9) {
-                System.out.println("[Робот " + name + "] ПРОДАЖА акции " + stockSymbol + " по цене " + newPrice);
+                events.onEvent(EventType.BOT_BUY, name, stockSymbol, newPrice, threshold);
+                placeOrder(stockSymbol, OrderSide.BUY, newPrice);
+            } else if (newPrice < threshold * SELL_RATIO) {
+                events.onEvent(EventType.BOT_SELL, name, stockSymbol, newPrice, threshold);
+                placeOrder(stockSymbol, OrderSide.SELL, newPrice);
             }
         }
     }
 
-    public Set<String> getSubscribedStocks() {
-        return subscribedStocks;
-    }
-
-    public void subscribeTo(String stock) {
-        subscribedStocks.add(stock);
+    private void placeOrder(String stockSymbol, OrderSide side, double price) {
+        MatchingEngine engine = this.engine;
+        if (engine != null && engine.isRunning()) engine.submit(stockSymbol, side, price, orderQuantity);
     }
 }
 
 public class Main {
     public static void main(String[] args) {
-        Scanner scanner = new Scanner(System.in);
+        if (args.length == 3 && args[0].equals("--batch")) {
+            runBatch(Paths.get(args[1]), Paths.get(args[2]));
+            return;
+        }
+
+        FastLineReader reader = new FastLineReader(System.in);
 
         // Система бронирования путешествий
         System.out.println("Система бронирования путешествий");
         System.out.println("Выберите транспорт:");
-        System.out.println("1 - Самолёт");
-        System.out.println("2 - Поезд");
-        System.out.println("3 - Автобус");
-        String transportChoice = scanner.nextLine();
-
-        TravelBookingContext bookingContext = new TravelBookingContext();
-        switch (transportChoice) {
-            case "1":
-                bookingContext.setStrategy(new AirplaneStrategy());
-                break;
-            case "2":
-                bookingContext.setStrategy(new TrainStrategy());
-                break;
-            case "3":
-                bookingContext.setStrategy(new BusStrategy());
-                break;
-            default:
-                System.out.println("Неверный выбор транспорта.");
-                scanner.close();
-                return;
+        for (TransportType transport : TransportType.values()) {
+            System.out.println(transport.getCode() + " - " + transport.getDisplayName());
+        }
+        TransportType transport;
+        try {
+            reader.nextLine();
+            transport = TransportType.fromCode(reader.parseInt());
+        } catch (IOException | NumberFormatException e) {
+            transport = null;
+        }
+
+        TravelPricingService pricingService = TravelPricingService.defaultService();
+        if (!pricingService.supports(transport)) {
+            System.out.println("Неверный выбор транспорта.");
+            return;
         }
 
         try {
             System.out.println("Введите расстояние (км):");
-            double distance = Double.parseDouble(scanner.nextLine());
+            reader.nextLine();
+            double distance = reader.parseDouble();
             System.out.println("Класс обслуживания (эконом/бизнес):");
-            String serviceClass = scanner.nextLine().toLowerCase();
-            if (!serviceClass.equals("эконом") && !serviceClass.equals("бизнес")) {
+            reader.nextLine();
+            ServiceClass serviceClass = reader.parseServiceClass();
+            if (serviceClass == null) {
                 System.out.println("Некорректный класс обслуживания.");
-                scanner.close();
                 return;
             }
             System.out.println("Количество пассажиров:");
-            int passengers = Integer.parseInt(scanner.nextLine());
+            reader.nextLine();
+            int passengers = reader.parseInt();
             System.out.println("Есть багаж? (да/нет):");
-            boolean hasLuggage = scanner.nextLine().trim().toLowerCase().startsWith("д");
+            reader.nextLine();
+            boolean hasLuggage = reader.parseYes();
             System.out.println("Есть дети или пенсионеры? (да/нет):");
-            boolean isChildOrSenior = scanner.nextLine().trim().toLowerCase().startsWith("д");
+            reader.nextLine();
+            boolean isChildOrSenior = reader.parseYes();
 
-            double totalCost = bookingContext.calculateTotalCost(distance, serviceClass, passengers, hasLuggage, isChildOrSenior);
+            double totalCost = pricingService.calculateTotalCost(transport, distance, serviceClass, passengers, hasLuggage, isChildOrSenior);
             System.out.printf("Итоговая стоимость поездки: %.2f руб.\n", totalCost);
         } catch (Exception e) {
             System.out.println("Ошибка ввода данных: " + e.getMessage());
-            scanner.close();
             return;
         }
 
@@ -223,25 +3921,24 @@ public class Main {
         StockExchange exchange = new StockExchange();
 
         TraderObserver trader1 = new TraderObserver("Сумая");
-        trader1.subscribeTo("AAPL");
-        trader1.subscribeTo("GOOGL");
 
         TradingBotObserver bot1 = new TradingBotObserver("SuperBot");
-        bot1.subscribeTo("AAPL");
         bot1.setThreshold("AAPL", 190.0);
-        bot1.subscribeTo("TSLA");
         bot1.setThreshold("TSLA", 250.0);
 
-        exchange.registerObserver(trader1, "AAPL");
-        exchange.registerObserver(trader1, "GOOGL");
-        exchange.registerObserver(bot1, "AAPL");
-        exchange.registerObserver(bot1, "TSLA");
+        exchange.subscribe(trader1, "AAPL", "GOOGL");
+        bot1.registerTriggers(exchange);
+
+        // Встречная заявка на продажу: покупка робота исполнится по 191.5 и станет новой ценой AAPL
+        MatchingEngine engine = new MatchingEngine(exchange);
+        engine.submit("AAPL", OrderSide.SELL, 191.5, 10);
+        bot1.attachEngine(engine, 10);
 
         System.out.println("\n--- Изменение цен акций ---");
         exchange.setStockPrice("AAPL", 185.0);
         try { Thread.sleep(100); } catch (InterruptedException ignored) {}
         exchange.setStockPrice("AAPL", 192.0);
-        try { Thread.sleep(100); } catch (InterruptedException ignored) {}
+        try { Thread.sleep(200); } catch (InterruptedException ignored) {}
         exchange.setStockPrice("TSLA", 240.0);
         try { Thread.sleep(100); } catch (InterruptedException ignored) {}
         exchange.setStockPrice("TSLA", 260.0);
@@ -250,7 +3947,19 @@ public class Main {
         exchange.removeObserver(trader1, "AAPL");
         exchange.setStockPrice("AAPL", 195.0);
 
-        scanner.close();
+        engine.shutdown();
         exchange.shutdown();
     }
+
+    private static void runBatch(Path input, Path output) {
+        long start = System.nanoTime();
+        try {
+            long quotes = new CsvQuotePipeline(TravelPricingService.defaultService()).run(input, output);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Рассчитано котировок: %d за %.2f с (%.1f МБ/с)%n", quotes, seconds,
+                    Files.size(input) / seconds / (1 << 20));
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Ошибка пакетной обработки: " + e.getMessage());
+        }
+    }
 }
\ No newline at end of file